@@ -0,0 +1,176 @@
+package ch.trillian.dufour;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// compares filling a screen from the SQLite DB with one read per tile and with batched reads as the loader makes them
+// run with: ./gradlew connectedAndroidTest, the results are logged with tag BENCHMARK
+@RunWith(AndroidJUnit4.class)
+public class ScreenFillBenchmarkTest {
+
+    private static final String TAG = "BENCHMARK";
+
+    // the tiles of a portrait phone screen
+    private static final int SCREEN_TILES_X = 6;
+    private static final int SCREEN_TILES_Y = 10;
+
+    // the side of the blocks read at once, the loader batches up to 16 tiles close to each other
+    private static final int BLOCK_SIZE = 4;
+
+    // the number of screens filled in each way
+    private static final int ROUNDS = 100;
+
+    // the seed of the random screens, the same screens are filled in each way
+    private static final long SEED = 1903;
+
+    private MapDatabase database;
+    private Layer layer;
+
+    // the positions (x << 32 | y) of the tiles on DB of the layer with the most tiles, used as the top left of the screens
+    private final ArrayList<Long> positions = new ArrayList<>();
+
+    private static class Result {
+
+        private long nanos;
+        private int screens;
+        private int found;
+        private int decoded;
+    }
+
+    @Before
+    public void setUp() {
+
+        Context context = InstrumentationRegistry.getTargetContext();
+
+        database = MapDatabase.newInstance(context);
+        database.openDatabase();
+
+        // the layer with the most tiles on DB
+        for (Map map : MapActivity.createMaps()) {
+            for (Layer candidate : map.getLayers()) {
+                HashSet<Long> existing = database.readExistingTiles(candidate, 0, candidate.getSizeX() - 1, 0, candidate.getSizeY() - 1);
+                if (existing.size() > positions.size()) {
+                    layer = candidate;
+                    positions.clear();
+                    positions.addAll(existing);
+                }
+            }
+        }
+    }
+
+    @After
+    public void tearDown() {
+
+        database.closeDatabase();
+    }
+
+    @Test
+    public void compareScreenFills() {
+
+        Assume.assumeTrue("No tiles on DB", !positions.isEmpty());
+
+        Log.i(TAG, String.format("Layer %s with %d tiles on DB, %d screens of %dx%d tiles", layer.getName(), positions.size(), ROUNDS, SCREEN_TILES_X, SCREEN_TILES_Y));
+
+        // warms up the DB connection and the page cache the same way for both
+        fill(false);
+        fill(true);
+
+        Result perTile = fill(false);
+        Result batched = fill(true);
+        report("one read per tile", perTile);
+        report("batched", batched);
+
+        // both fill the same screens, so they find and decode the same tiles
+        assertEquals("per tile screens", ROUNDS, perTile.screens);
+        assertEquals("batched screens", ROUNDS, batched.screens);
+        assertTrue("per tile found " + perTile.found, perTile.found >= ROUNDS);
+        assertEquals("batched found", perTile.found, batched.found);
+        assertEquals("batched decoded", perTile.decoded, batched.decoded);
+    }
+
+    private Result fill(boolean batched) {
+
+        final Result result = new Result();
+        Random random = new Random(SEED);
+
+        TileStore.TileConsumer consumer = new TileStore.TileConsumer() {
+
+            @Override
+            public void onTile(Tile tile, ByteBuffer image) {
+
+                if (image != null) {
+                    release(result, TileDecoder.decode(image, tile.getLayer()));
+                }
+            }
+        };
+
+        for (int round = 0; round < ROUNDS; round++) {
+
+            long position = positions.get(random.nextInt(positions.size()));
+            int screenX = (int) (position >>> 32);
+            int screenY = (int) position;
+            int maxX = Math.min(layer.getSizeX(), screenX + SCREEN_TILES_X);
+            int maxY = Math.min(layer.getSizeY(), screenY + SCREEN_TILES_Y);
+
+            long start = System.nanoTime();
+            if (batched) {
+                for (int blockY = screenY; blockY < maxY; blockY += BLOCK_SIZE) {
+                    for (int blockX = screenX; blockX < maxX; blockX += BLOCK_SIZE) {
+                        ArrayList<Tile> tiles = new ArrayList<>(BLOCK_SIZE * BLOCK_SIZE);
+                        for (int y = blockY; y < Math.min(maxY, blockY + BLOCK_SIZE); y++) {
+                            for (int x = blockX; x < Math.min(maxX, blockX + BLOCK_SIZE); x++) {
+                                tiles.add(new Tile(layer, x, y));
+                            }
+                        }
+                        result.found += database.readTiles(layer, tiles, consumer);
+                    }
+                }
+            } else {
+                for (int y = screenY; y < maxY; y++) {
+                    for (int x = screenX; x < maxX; x++) {
+                        Tile tile = new Tile(layer, x, y);
+                        if (database.readTile(tile)) {
+                            result.found++;
+                            release(result, tile.getBitmap());
+                        }
+                    }
+                }
+            }
+            result.nanos += System.nanoTime() - start;
+            result.screens++;
+        }
+
+        return result;
+    }
+
+    // returns a decoded bitmap to the pool, so both ways decode into pooled bitmaps
+    private static void release(Result result, Bitmap bitmap) {
+
+        if (bitmap != null) {
+            result.decoded++;
+            TileDecoder.release(bitmap);
+        }
+    }
+
+    private static void report(String name, Result result) {
+
+        Log.i(TAG, String.format("%s: %.3f ms/screen (%d tiles found in %d screens)", name, result.nanos / 1e6 / result.screens, result.found, result.screens));
+    }
+}
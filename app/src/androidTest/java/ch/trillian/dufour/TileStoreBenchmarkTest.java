@@ -0,0 +1,183 @@
+package ch.trillian.dufour;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// compares the read latency of the SQLite DB and the pack file store on the device's own tiles
+// the lookup and blob fetch is timed separately from decoding, so the stores are compared without the JPEG decoder
+// run with: ./gradlew connectedAndroidTest, the results are logged with tag BENCHMARK
+@RunWith(AndroidJUnit4.class)
+public class TileStoreBenchmarkTest {
+
+    private static final String TAG = "BENCHMARK";
+
+    // the number of random positions read from each store
+    private static final int ROUNDS = 500;
+
+    // the seed of the random positions, the same positions are read from each store
+    private static final long SEED = 1903;
+
+    private MapDatabase database;
+    private PackFileTileStore packStore;
+    private Layer layer;
+
+    // the positions (x << 32 | y) of the tiles on DB of the layer with the most tiles
+    private final ArrayList<Long> positions = new ArrayList<>();
+
+    private static class Result {
+
+        private long fetchNanos;
+        private long decodeNanos;
+        private int reads;
+        private int found;
+        private int decoded;
+        private long bytes;
+    }
+
+    @Before
+    public void setUp() {
+
+        Context context = InstrumentationRegistry.getTargetContext();
+
+        database = MapDatabase.newInstance(context);
+        database.openDatabase();
+
+        File packDirectory = new File(context.getExternalFilesDir(null), "pack");
+        if (packDirectory.isDirectory()) {
+            packStore = new PackFileTileStore(packDirectory);
+            packStore.openDatabase();
+        }
+
+        // the layer with the most tiles on DB
+        for (Map map : MapActivity.createMaps()) {
+            for (Layer candidate : map.getLayers()) {
+                HashSet<Long> existing = database.readExistingTiles(candidate, 0, candidate.getSizeX() - 1, 0, candidate.getSizeY() - 1);
+                if (existing.size() > positions.size()) {
+                    layer = candidate;
+                    positions.clear();
+                    positions.addAll(existing);
+                }
+            }
+        }
+    }
+
+    @After
+    public void tearDown() {
+
+        database.closeDatabase();
+        if (packStore != null) {
+            packStore.closeDatabase();
+        }
+    }
+
+    @Test
+    public void compareStores() {
+
+        Assume.assumeTrue("No tiles on DB", !positions.isEmpty());
+
+        Log.i(TAG, String.format("Layer %s with %d tiles on DB, %d rounds", layer.getName(), positions.size(), ROUNDS));
+
+        Result sqliteRandom = run(database, false);
+        Result sqlite3x3 = run(database, true);
+        report("sqlite random", sqliteRandom);
+        report("sqlite 3x3", sqlite3x3);
+
+        // every position is a tile on DB, only tiles stored without content aren't found
+        check("sqlite random", sqliteRandom);
+        check("sqlite 3x3", sqlite3x3);
+        assertTrue("sqlite random found " + sqliteRandom.found, sqliteRandom.found > 0 && sqliteRandom.found <= ROUNDS);
+        assertTrue("sqlite 3x3 found " + sqlite3x3.found, sqlite3x3.found >= sqliteRandom.found && sqlite3x3.found <= 9 * ROUNDS);
+
+        if (packStore != null) {
+            Result packRandom = run(packStore, false);
+            Result pack3x3 = run(packStore, true);
+            report("pack random", packRandom);
+            report("pack 3x3", pack3x3);
+
+            // the same positions are read, so a pack packed from this DB returns the same tiles
+            check("pack random", packRandom);
+            check("pack 3x3", pack3x3);
+            assertEquals("pack random found, the pack is older than the DB", sqliteRandom.found, packRandom.found);
+            assertEquals("pack 3x3 found, the pack is older than the DB", sqlite3x3.found, pack3x3.found);
+            assertEquals("pack 3x3 bytes", sqlite3x3.bytes, pack3x3.bytes);
+        }
+    }
+
+    // all reads were made and all found images could be decoded
+    private static void check(String name, Result result) {
+
+        assertEquals(name + " reads", ROUNDS, result.reads);
+        assertEquals(name + " decoded", result.found, result.decoded);
+    }
+
+    // reads a single tile or the 3x3 tiles around random positions of tiles on DB
+    private Result run(TileStore store, boolean neighbourhood) {
+
+        final Result result = new Result();
+        final ArrayList<byte[]> images = new ArrayList<>(9);
+        Random random = new Random(SEED);
+
+        TileStore.TileImageConsumer consumer = new TileStore.TileImageConsumer() {
+
+            @Override
+            public void onTileImage(int x, int y, byte[] image) {
+
+                images.add(image);
+            }
+        };
+
+        for (int round = 0; round < ROUNDS; round++) {
+
+            long position = positions.get(random.nextInt(positions.size()));
+            int x = (int) (position >>> 32);
+            int y = (int) position;
+            int span = neighbourhood ? 1 : 0;
+
+            // the lookup and the blob fetch, one range per row as the loader reads its batches
+            images.clear();
+            long start = System.nanoTime();
+            for (int j = Math.max(0, y - span); j <= y + span; j++) {
+                result.found += store.readTileImages(layer, Math.max(0, x - span), x + span, j, consumer);
+            }
+            result.fetchNanos += System.nanoTime() - start;
+            result.reads++;
+
+            // decoding the fetched images
+            start = System.nanoTime();
+            for (byte[] image : images) {
+                result.bytes += image.length;
+                Bitmap bitmap = TileDecoder.decode(image, layer);
+                if (bitmap != null) {
+                    result.decoded++;
+                    TileDecoder.release(bitmap);
+                }
+            }
+            result.decodeNanos += System.nanoTime() - start;
+        }
+
+        return result;
+    }
+
+    private static void report(String name, Result result) {
+
+        Log.i(TAG, String.format("%s: fetch %.3f ms/read, decode %.3f ms/read (%d tiles found, %d bytes in %d reads)",
+                name, result.fetchNanos / 1e6 / result.reads, result.decodeNanos / 1e6 / result.reads, result.found, result.bytes, result.reads));
+    }
+}
@@ -0,0 +1,92 @@
+package ch.trillian.dufour;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+// bitmaps of evicted tiles kept for decoding new tiles into them, grouped by size and config
+public class BitmapPool {
+
+    // the maximum number of bitmaps kept per size and config
+    private static final int MAX_BITMAPS_PER_KEY = 16;
+
+    // Our singleton
+    private static final BitmapPool instance = new BitmapPool();
+
+    private final HashMap<String, ArrayDeque<Bitmap>> bitmaps = new HashMap<>();
+
+    // statistics
+    private int putCount;
+    private int hitCount;
+    private int missCount;
+    private int dropCount;
+
+    public static BitmapPool getInstance() {
+
+        return instance;
+    }
+
+    private static String key(int width, int height, Bitmap.Config config) {
+
+        return width + "x" + height + "-" + config;
+    }
+
+    // returns a bitmap of the given size and config or null if there is none
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+
+        ArrayDeque<Bitmap> queue = bitmaps.get(key(width, height, config));
+        Bitmap bitmap = queue == null ? null : queue.poll();
+
+        if (bitmap == null) {
+            missCount++;
+        } else {
+            hitCount++;
+        }
+
+        return bitmap;
+    }
+
+    // the bitmap must not be used anymore by the caller
+    public synchronized void put(Bitmap bitmap) {
+
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+            return;
+        }
+
+        String key = key(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        ArrayDeque<Bitmap> queue = bitmaps.get(key);
+        if (queue == null) {
+            queue = new ArrayDeque<>();
+            bitmaps.put(key, queue);
+        }
+
+        // never hand out the same bitmap twice
+        if (queue.contains(bitmap)) {
+            return;
+        }
+
+        if (queue.size() >= MAX_BITMAPS_PER_KEY) {
+            dropCount++;
+            return;
+        }
+
+        queue.offer(bitmap);
+        putCount++;
+    }
+
+    public synchronized void clear() {
+
+        bitmaps.clear();
+    }
+
+    public synchronized String getStatistics() {
+
+        int size = 0;
+        for (ArrayDeque<Bitmap> queue : bitmaps.values()) {
+            size += queue.size();
+        }
+
+        return String.format("size=%d, puts=%d, hits=%d, misses=%d, drops=%d", size, putCount, hitCount, missCount, dropCount);
+    }
+}
@@ -0,0 +1,187 @@
+package ch.trillian.dufour;
+
+// a region of a map to be downloaded for offline use, the layers from minLayer to maxLayer are downloaded row by row
+public class DownloadJob {
+
+    public static final int STATE_QUEUED = 0;
+    public static final int STATE_RUNNING = 1;
+    public static final int STATE_DONE = 2;
+    public static final int STATE_CANCELLED = 3;
+
+    private long id;
+    private final String mapName;
+    private final int minLayer;
+    private final int maxLayer;
+
+    // the bounding box in CH1903 coordinates
+    private final float left;
+    private final float top;
+    private final float right;
+    private final float bottom;
+
+    private int state;
+
+    // the next row to download, everything before has been downloaded
+    private int layer;
+    private int row;
+
+    // progress
+    private int tilesTotal;
+    private int tilesDone;
+    private int tilesFailed;
+    private long bytesDone;
+    private long created;
+
+    public DownloadJob(String mapName, int minLayer, int maxLayer, float left, float top, float right, float bottom) {
+
+        this.mapName = mapName;
+        this.minLayer = minLayer;
+        this.maxLayer = maxLayer;
+        this.left = Math.min(left, right);
+        this.top = Math.max(top, bottom);
+        this.right = Math.max(left, right);
+        this.bottom = Math.min(top, bottom);
+        this.layer = minLayer;
+        this.row = -1;
+    }
+
+    // the first tile column of the given layer within the bounding box
+    public int getMinTileX(Layer layer) {
+
+        return clamp((int) Math.floor((left - layer.getLeft()) / (layer.getTileSizeX() * layer.getMeterPerPixel())), layer.getSizeX());
+    }
+
+    public int getMaxTileX(Layer layer) {
+
+        return clamp((int) Math.floor((right - layer.getLeft()) / (layer.getTileSizeX() * layer.getMeterPerPixel())), layer.getSizeX());
+    }
+
+    public int getMinTileY(Layer layer) {
+
+        return clamp((int) Math.floor((layer.getTop() - top) / (layer.getTileSizeY() * layer.getMeterPerPixel())), layer.getSizeY());
+    }
+
+    public int getMaxTileY(Layer layer) {
+
+        return clamp((int) Math.floor((layer.getTop() - bottom) / (layer.getTileSizeY() * layer.getMeterPerPixel())), layer.getSizeY());
+    }
+
+    private static int clamp(int tile, int size) {
+
+        return Math.max(0, Math.min(size - 1, tile));
+    }
+
+    // the number of tiles of the given layer within the bounding box
+    public int getTileCount(Layer layer) {
+
+        return (getMaxTileX(layer) - getMinTileX(layer) + 1) * (getMaxTileY(layer) - getMinTileY(layer) + 1);
+    }
+
+    public boolean isFinished() {
+
+        return state == STATE_DONE || state == STATE_CANCELLED;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
+    public String getMapName() {
+        return mapName;
+    }
+
+    public int getMinLayer() {
+        return minLayer;
+    }
+
+    public int getMaxLayer() {
+        return maxLayer;
+    }
+
+    public float getLeft() {
+        return left;
+    }
+
+    public float getTop() {
+        return top;
+    }
+
+    public float getRight() {
+        return right;
+    }
+
+    public float getBottom() {
+        return bottom;
+    }
+
+    public int getState() {
+        return state;
+    }
+
+    public void setState(int state) {
+        this.state = state;
+    }
+
+    public int getLayer() {
+        return layer;
+    }
+
+    public int getRow() {
+        return row;
+    }
+
+    // sets the next row to download, -1 for the layer's first row
+    public void setCursor(int layer, int row) {
+        this.layer = layer;
+        this.row = row;
+    }
+
+    public int getTilesTotal() {
+        return tilesTotal;
+    }
+
+    public void setTilesTotal(int tilesTotal) {
+        this.tilesTotal = tilesTotal;
+    }
+
+    public int getTilesDone() {
+        return tilesDone;
+    }
+
+    public void setTilesDone(int tilesDone) {
+        this.tilesDone = tilesDone;
+    }
+
+    public int getTilesFailed() {
+        return tilesFailed;
+    }
+
+    public void setTilesFailed(int tilesFailed) {
+        this.tilesFailed = tilesFailed;
+    }
+
+    public long getBytesDone() {
+        return bytesDone;
+    }
+
+    public void setBytesDone(long bytesDone) {
+        this.bytesDone = bytesDone;
+    }
+
+    public long getCreated() {
+        return created;
+    }
+
+    public void setCreated(long created) {
+        this.created = created;
+    }
+
+    public String toString() {
+
+        return String.format("DownloadJob(%d, %s, layers %d-%d, state=%d, %d/%d tiles, %d failed, %d bytes)", id, mapName, minLayer, maxLayer, state, tilesDone, tilesTotal, tilesFailed, bytesDone);
+    }
+}
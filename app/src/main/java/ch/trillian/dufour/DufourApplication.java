@@ -0,0 +1,16 @@
+package ch.trillian.dufour;
+
+import android.app.Application;
+
+// sets up what must be in place before any activity or thread uses it
+public class DufourApplication extends Application {
+
+    @Override
+    public void onCreate() {
+
+        super.onCreate();
+
+        // before the first connection of the process, HttpURLConnection reads these properties once
+        TileHttpClient.configureConnectionPool(TileLoader.DEFAULT_MAX_CONNECTIONS_PER_HOST);
+    }
+}
@@ -0,0 +1,114 @@
+package ch.trillian.dufour;
+
+import android.content.Context;
+import android.util.LruCache;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+// the encoded images of recently loaded tiles, between the decoded tiles of TileCache and the DB
+public class EncodedTileCache {
+
+    // the size of the cache relative to the budget of the decoded tiles
+    private static final int BUDGET_FRACTION = 4;
+
+    // the number of bytes charged per entry in addition to its image
+    private static final int ENTRY_OVERHEAD = 128;
+
+    // Our singleton
+    private static EncodedTileCache instance;
+
+    private final LruCache<Long, Entry> entries;
+
+    // the same entries by key for looking them up without counting a hit or miss and without changing their order
+    private final ConcurrentHashMap<Long, Entry> peekEntries = new ConcurrentHashMap<>();
+
+    public static class Entry {
+
+        private final Tile tile;
+        private final byte[] image;
+
+        private Entry(Tile source, byte[] image) {
+
+            // copy the tile's state without holding its bitmap
+            this.tile = new Tile(source.getLayer(), source.getX(), source.getY());
+            this.tile.assign(source);
+            this.tile.setBitmap(null);
+            this.image = image;
+        }
+
+        public Tile getTile() {
+            return tile;
+        }
+
+        public byte[] getImage() {
+            return image;
+        }
+    }
+
+    private EncodedTileCache(int maxBytes) {
+
+        entries = new LruCache<Long, Entry>(maxBytes) {
+
+            @Override
+            protected int sizeOf(Long key, Entry entry) {
+
+                return ENTRY_OVERHEAD + (entry.image == null ? 0 : entry.image.length);
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, Long key, Entry oldEntry, Entry newEntry) {
+
+                // a replaced entry has already been put by put()
+                if (newEntry == null) {
+                    peekEntries.remove(key, oldEntry);
+                }
+            }
+        };
+    }
+
+    // the size follows from the app's memory class, so the instance created first fits every later caller
+    public static synchronized EncodedTileCache newInstance(Context context) {
+
+        if (instance == null) {
+            instance = new EncodedTileCache(TileCache.getMemoryBudget(context) / BUDGET_FRACTION);
+        }
+
+        return instance;
+    }
+
+    public void put(Tile tile, byte[] image) {
+
+        put(tile.getKey(), new Entry(tile, image));
+    }
+
+    private void put(Long key, Entry entry) {
+
+        peekEntries.put(key, entry);
+        entries.put(key, entry);
+    }
+
+    public Entry get(Tile tile) {
+
+        return entries.get(tile.getKey());
+    }
+
+    // returns true if the tile is cached, doesn't count as hit or miss and doesn't make the tile the most recently used
+    public boolean contains(Tile tile) {
+
+        return peekEntries.containsKey(tile.getKey());
+    }
+
+    // updates the metadata (last used, validators) of the cached tile if there is one
+    public void update(Tile tile) {
+
+        Entry entry = peekEntries.get(tile.getKey());
+        if (entry != null) {
+            put(tile.getKey(), new Entry(tile, entry.image));
+        }
+    }
+
+    public String getStatistics() {
+
+        return String.format("size=%d, maxSize=%d, hits=%d, misses=%d, evictions=%d", entries.size(), entries.maxSize(), entries.hitCount(), entries.missCount(), entries.evictionCount());
+    }
+}
@@ -0,0 +1,91 @@
+package ch.trillian.dufour;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+// the tile images stored once per content, tiles refer to them by ID and they are deleted with their last tile
+public class ImageTable {
+
+    public static final String TABLE_NAME = "IMAGE";
+    public static final String COL_ID = "ID";
+    public static final String COL_HASH = "HASH";
+    public static final String COL_REF_COUNT = "REF_COUNT";
+    public static final String COL_SIZE = "SIZE";
+    public static final String COL_DATA = "DATA";
+
+    private static final String SQL_CREATE_TABLE = "CREATE TABLE "
+            + TABLE_NAME
+            + "("
+            + COL_ID + " INTEGER PRIMARY KEY, "
+            + COL_HASH + " BLOB NOT NULL UNIQUE, "
+            + COL_REF_COUNT + " INTEGER NOT NULL, "
+            + COL_SIZE + " INTEGER NOT NULL, "
+            + COL_DATA + " BLOB NOT NULL"
+            + ");";
+
+    public static final String SQL_FIND_IMAGE = "SELECT " + COL_ID + " FROM " + TABLE_NAME + " WHERE " + COL_HASH + " = ?";
+
+    public static final String SQL_ADD_REFERENCE = "UPDATE " + TABLE_NAME + " SET " + COL_REF_COUNT + " = " + COL_REF_COUNT + " + 1 WHERE " + COL_ID + " = ?";
+
+    public static final String SQL_INSERT_IMAGE = "INSERT INTO " + TABLE_NAME + " (" + COL_HASH + "," + COL_REF_COUNT + "," + COL_SIZE + "," + COL_DATA + ") VALUES(?,1,?,?)";
+
+    public static void onCreate(SQLiteDatabase database) {
+
+        database.execSQL(SQL_CREATE_TABLE);
+    }
+
+    public static void onUpgrade(SQLiteDatabase database, int oldVersion, int newVersion) {
+
+        if (oldVersion < 8) {
+            Log.w(ImageTable.class.getName(), "Upgrading table " + TABLE_NAME + " from version " + oldVersion + " to 8, creating table.");
+            database.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME);
+            onCreate(database);
+        }
+    }
+
+    // the SHA-1 of the image, identical images have the same hash
+    public static byte[] hash(byte[] image) {
+
+        try {
+            return MessageDigest.getInstance("SHA-1").digest(image);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // returns the ID of the image with the given hash or -1 if there is none
+    public static long findImage(SQLiteStatement findStatement, byte[] hash) {
+
+        findStatement.clearBindings();
+        findStatement.bindBlob(1, hash);
+
+        try {
+            return findStatement.simpleQueryForLong();
+        } catch (SQLiteDoneException e) {
+            return -1;
+        }
+    }
+
+    public static void addReference(SQLiteStatement addReferenceStatement, long imageId) {
+
+        addReferenceStatement.clearBindings();
+        addReferenceStatement.bindLong(1, imageId);
+        addReferenceStatement.executeUpdateDelete();
+    }
+
+    // inserts the image with one reference, returns its ID
+    public static long insertImage(SQLiteStatement insertStatement, byte[] hash, byte[] image) {
+
+        insertStatement.clearBindings();
+        insertStatement.bindBlob(1, hash);
+        insertStatement.bindLong(2, image.length);
+        insertStatement.bindBlob(3, image);
+
+        return insertStatement.executeInsert();
+    }
+}
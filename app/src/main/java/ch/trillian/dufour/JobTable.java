@@ -0,0 +1,60 @@
+package ch.trillian.dufour;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+public class JobTable {
+
+    public static final String TABLE_NAME = "JOB";
+    public static final String COL_ID = "ID";
+    public static final String COL_MAP_ID = "MAP_ID";
+    public static final String COL_MIN_LAYER = "MIN_LAYER";
+    public static final String COL_MAX_LAYER = "MAX_LAYER";
+    public static final String COL_LEFT = "LEFT_X";
+    public static final String COL_TOP = "TOP_Y";
+    public static final String COL_RIGHT = "RIGHT_X";
+    public static final String COL_BOTTOM = "BOTTOM_Y";
+    public static final String COL_STATE = "STATE";
+    public static final String COL_LAYER = "LAYER";
+    public static final String COL_ROW = "ROW";
+    public static final String COL_TILES_TOTAL = "TILES_TOTAL";
+    public static final String COL_TILES_DONE = "TILES_DONE";
+    public static final String COL_TILES_FAILED = "TILES_FAILED";
+    public static final String COL_BYTES_DONE = "BYTES_DONE";
+    public static final String COL_CREATED = "CREATED";
+
+    private static final String SQL_CREATE_TABLE = "CREATE TABLE "
+            + TABLE_NAME
+            + "("
+            + COL_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+            + COL_MAP_ID + " TEXT NOT NULL, "
+            + COL_MIN_LAYER + " INTEGER NOT NULL, "
+            + COL_MAX_LAYER + " INTEGER NOT NULL, "
+            + COL_LEFT + " REAL NOT NULL, "
+            + COL_TOP + " REAL NOT NULL, "
+            + COL_RIGHT + " REAL NOT NULL, "
+            + COL_BOTTOM + " REAL NOT NULL, "
+            + COL_STATE + " INTEGER NOT NULL, "
+            + COL_LAYER + " INTEGER NOT NULL, "
+            + COL_ROW + " INTEGER NOT NULL, "
+            + COL_TILES_TOTAL + " INTEGER NOT NULL, "
+            + COL_TILES_DONE + " INTEGER NOT NULL DEFAULT 0, "
+            + COL_TILES_FAILED + " INTEGER NOT NULL DEFAULT 0, "
+            + COL_BYTES_DONE + " INTEGER NOT NULL DEFAULT 0, "
+            + COL_CREATED + " INTEGER NOT NULL"
+            + ");";
+
+    public static void onCreate(SQLiteDatabase database) {
+
+        database.execSQL(SQL_CREATE_TABLE);
+    }
+
+    public static void onUpgrade(SQLiteDatabase database, int oldVersion, int newVersion) {
+
+        if (oldVersion < 5) {
+            Log.w(JobTable.class.getName(), "Upgrading table " + TABLE_NAME + " from version " + oldVersion + " to 5, creating table.");
+            database.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME);
+            onCreate(database);
+        }
+    }
+}
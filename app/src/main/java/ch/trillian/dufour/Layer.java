@@ -1,7 +1,10 @@
 package ch.trillian.dufour;
 
+import android.graphics.Bitmap;
 import android.location.Location;
 
+import java.net.MalformedURLException;
+import java.net.URL;
 
 @SuppressWarnings("SameParameterValue")
 public class Layer {
@@ -9,6 +12,10 @@ public class Layer {
     private final String name;
     private final String urlName;
     private final String urlFormat;
+    private final String urlHost;
+
+    // the config tiles are decoded to, opaque JPEGs don't need an alpha channel
+    private Bitmap.Config bitmapConfig;
 
     // the top left corner in ch1903 coordinates
     private final float left;
@@ -48,6 +55,8 @@ public class Layer {
         this.name = name;
         this.urlName = urlName;
         this.urlFormat = urlFormat;
+        this.urlHost = parseUrlHost(urlFormat);
+        this.bitmapConfig = parseBitmapConfig(urlFormat);
         this.left = left;
         this.top = top;
         this.meterPerPixel = meterPerPixel;
@@ -138,6 +147,62 @@ public class Layer {
         return null;
     }
 
+    private static String parseUrlHost(String urlFormat) {
+
+        try {
+            return new URL(urlFormat).getHost();
+        } catch (MalformedURLException e) {
+            return "";
+        }
+    }
+
+    public String getUrlHost() {
+
+        return urlHost;
+    }
+
+    // the name of the layer within the URL, the zoom level of the tile matrix
+    public String getUrlName() {
+
+        return urlName;
+    }
+
+    // the image format of the tiles as file extension
+    public String getImageFormat() {
+
+        String format = urlFormat.toLowerCase();
+
+        return format.endsWith(".jpeg") || format.endsWith(".jpg") ? "jpg" : "png";
+    }
+
+    private static Bitmap.Config parseBitmapConfig(String urlFormat) {
+
+        String format = urlFormat.toLowerCase();
+
+        return format.endsWith(".jpeg") || format.endsWith(".jpg") ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+    }
+
+    public Bitmap.Config getBitmapConfig() {
+
+        return bitmapConfig;
+    }
+
+    public void setBitmapConfig(Bitmap.Config bitmapConfig) {
+
+        this.bitmapConfig = bitmapConfig;
+    }
+
+    public int getBytesPerPixel() {
+
+        return bitmapConfig == Bitmap.Config.RGB_565 || bitmapConfig == Bitmap.Config.ARGB_4444 ? 2 : bitmapConfig == Bitmap.Config.ALPHA_8 ? 1 : 4;
+    }
+
+    // the number of bytes of a decoded tile
+    public int getTileByteCount() {
+
+        return tileSizeX * tileSizeY * getBytesPerPixel();
+    }
+
     public String getUrl(Tile tile) {
 
         return String.format(urlFormat, urlName, getUrlX(tile.getX()), getUrlY(tile.getY()));
@@ -153,6 +218,18 @@ public class Layer {
         return topTile < bottomTile ? topTile + y : topTile - y;
     }
 
+    // the inverse of getUrlX()
+    public int getTileX(int urlX) {
+
+        return leftTile < rightTile ? urlX - leftTile : leftTile - urlX;
+    }
+
+    // the inverse of getUrlY()
+    public int getTileY(int urlY) {
+
+        return topTile < bottomTile ? urlY - topTile : topTile - urlY;
+    }
+
     public boolean hasTile(int x, int y) {
 
         return x >= 0 && x < tilesX && y >= 0 && y < tilesY;
@@ -0,0 +1,57 @@
+package ch.trillian.dufour;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+// the dictionary of map and layer names, its IDs are part of the tile keys
+public class LayerTable {
+
+    public static final String TABLE_NAME = "LAYER";
+    public static final String COL_ID = "ID";
+    public static final String COL_MAP_ID = "MAP_ID";
+    public static final String COL_LAYER_ID = "LAYER_ID";
+    public static final String COL_TILE_COUNT = "TILE_COUNT";
+    public static final String COL_BYTE_COUNT = "BYTE_COUNT";
+
+    private static final String SQL_CREATE_TABLE = "CREATE TABLE "
+            + TABLE_NAME
+            + "("
+            + COL_ID + " INTEGER PRIMARY KEY, "
+            + COL_MAP_ID + " TEXT NOT NULL, "
+            + COL_LAYER_ID + " TEXT NOT NULL, "
+            + COL_TILE_COUNT + " INTEGER NOT NULL DEFAULT 0, "
+            + COL_BYTE_COUNT + " INTEGER NOT NULL DEFAULT 0, "
+            + "UNIQUE (" + COL_MAP_ID + ", " + COL_LAYER_ID + ")"
+            + ");";
+
+    // the usage is maintained by MapDatabase, this recomputes it from the tiles of each layer
+    private static final String SQL_UPDATE_USAGE = "UPDATE " + TABLE_NAME + " SET "
+            + COL_TILE_COUNT + " = (SELECT COUNT(*) FROM " + TileTable.TABLE_NAME + " WHERE " + TileTable.COL_KEY + " BETWEEN (" + COL_ID + " << " + TileTable.LAYER_SHIFT + ") AND ((" + COL_ID + " + 1) << " + TileTable.LAYER_SHIFT + ") - 1), "
+            + COL_BYTE_COUNT + " = (SELECT IFNULL(SUM(" + TileTable.COL_SIZE + "), 0) FROM " + TileTable.TABLE_NAME + " WHERE " + TileTable.COL_KEY + " BETWEEN (" + COL_ID + " << " + TileTable.LAYER_SHIFT + ") AND ((" + COL_ID + " + 1) << " + TileTable.LAYER_SHIFT + ") - 1)";
+
+    public static void onCreate(SQLiteDatabase database) {
+
+        database.execSQL(SQL_CREATE_TABLE);
+    }
+
+    public static void updateUsage(SQLiteDatabase database) {
+
+        database.execSQL(SQL_UPDATE_USAGE);
+    }
+
+    public static void onUpgrade(SQLiteDatabase database, int oldVersion, int newVersion) {
+
+        if (oldVersion < 6) {
+            Log.w(LayerTable.class.getName(), "Upgrading table " + TABLE_NAME + " from version " + oldVersion + " to 6, creating table.");
+            database.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME);
+            onCreate(database);
+            return;
+        }
+
+        if (oldVersion < 7) {
+            Log.w(LayerTable.class.getName(), "Upgrading table " + TABLE_NAME + " from version " + oldVersion + " to 7, adding usage.");
+            database.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + COL_TILE_COUNT + " INTEGER NOT NULL DEFAULT 0");
+            database.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + COL_BYTE_COUNT + " INTEGER NOT NULL DEFAULT 0");
+        }
+    }
+}
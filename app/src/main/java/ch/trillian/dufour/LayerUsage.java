@@ -0,0 +1,50 @@
+package ch.trillian.dufour;
+
+// the number of tiles and bytes on DB of one layer of a map
+public class LayerUsage {
+
+    private final String mapName;
+    private final String layerName;
+    private int tileCount;
+    private long byteCount;
+
+    public LayerUsage(String mapName, String layerName, int tileCount, long byteCount) {
+
+        this.mapName = mapName;
+        this.layerName = layerName;
+        this.tileCount = tileCount;
+        this.byteCount = byteCount;
+    }
+
+    public LayerUsage(LayerUsage usage) {
+
+        this(usage.mapName, usage.layerName, usage.tileCount, usage.byteCount);
+    }
+
+    public void add(int tiles, long bytes) {
+
+        tileCount += tiles;
+        byteCount += bytes;
+    }
+
+    public String getMapName() {
+        return mapName;
+    }
+
+    public String getLayerName() {
+        return layerName;
+    }
+
+    public int getTileCount() {
+        return tileCount;
+    }
+
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    public String toString() {
+
+        return String.format("%s/%s: %d tiles, %d bytes", mapName, layerName, tileCount, byteCount);
+    }
+}
@@ -0,0 +1,173 @@
+package ch.trillian.dufour;
+
+import java.util.Arrays;
+
+// an indexed binary heap of requests ordered by priority, then by distance to the focus, then by order
+// the caller is responsible for synchronization
+public class LoadQueue {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private TileRequest[] heap = new TileRequest[INITIAL_CAPACITY];
+    private int size;
+    private long sequence;
+
+    public static int compare(TileRequest a, TileRequest b) {
+
+        if (a.getPriority() != b.getPriority()) {
+            return a.getPriority() < b.getPriority() ? -1 : 1;
+        }
+
+        int distance = Float.compare(a.getDistance(), b.getDistance());
+        if (distance != 0) {
+            return distance;
+        }
+
+        return a.getSequence() < b.getSequence() ? -1 : (a.getSequence() == b.getSequence() ? 0 : 1);
+    }
+
+    public int size() {
+
+        return size;
+    }
+
+    public boolean isEmpty() {
+
+        return size == 0;
+    }
+
+    public TileRequest get(int index) {
+
+        return heap[index];
+    }
+
+    public boolean contains(TileRequest request) {
+
+        int index = request.getQueueIndex();
+
+        return index >= 0 && index < size && heap[index] == request;
+    }
+
+    public void offer(TileRequest request) {
+
+        if (size == heap.length) {
+            heap = Arrays.copyOf(heap, size * 2);
+        }
+
+        request.setSequence(sequence++);
+        heap[size] = request;
+        request.setQueueIndex(size);
+        size++;
+
+        siftUp(size - 1);
+    }
+
+    public TileRequest peek() {
+
+        return size == 0 ? null : heap[0];
+    }
+
+    public TileRequest poll() {
+
+        if (size == 0) {
+            return null;
+        }
+
+        TileRequest request = heap[0];
+        removeAt(0);
+
+        return request;
+    }
+
+    public boolean remove(TileRequest request) {
+
+        if (!contains(request)) {
+            return false;
+        }
+
+        removeAt(request.getQueueIndex());
+
+        return true;
+    }
+
+    // restores the order after the request's priority or distance has changed
+    public void update(TileRequest request) {
+
+        if (!contains(request)) {
+            return;
+        }
+
+        siftUp(request.getQueueIndex());
+        siftDown(request.getQueueIndex());
+    }
+
+    // updates all distances and restores the order
+    public void setFocus(float ch1903X, float ch1903Y) {
+
+        for (int i = 0; i < size; i++) {
+            heap[i].updateDistance(ch1903X, ch1903Y);
+        }
+
+        for (int i = size / 2 - 1; i >= 0; i--) {
+            siftDown(i);
+        }
+    }
+
+    private void removeAt(int index) {
+
+        TileRequest request = heap[index];
+        request.setQueueIndex(-1);
+
+        size--;
+        TileRequest last = heap[size];
+        heap[size] = null;
+
+        if (index < size) {
+            heap[index] = last;
+            last.setQueueIndex(index);
+            siftUp(index);
+            siftDown(last.getQueueIndex());
+        }
+    }
+
+    private void siftUp(int index) {
+
+        TileRequest request = heap[index];
+
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (compare(request, heap[parent]) >= 0) {
+                break;
+            }
+            heap[index] = heap[parent];
+            heap[index].setQueueIndex(index);
+            index = parent;
+        }
+
+        heap[index] = request;
+        request.setQueueIndex(index);
+    }
+
+    private void siftDown(int index) {
+
+        TileRequest request = heap[index];
+        int half = size >>> 1;
+
+        while (index < half) {
+            int child = 2 * index + 1;
+            int right = child + 1;
+            if (right < size && compare(heap[right], heap[child]) < 0) {
+                child = right;
+            }
+            if (compare(request, heap[child]) <= 0) {
+                break;
+            }
+            heap[index] = heap[child];
+            heap[index].setQueueIndex(index);
+            index = child;
+        }
+
+        heap[index] = request;
+        request.setQueueIndex(index);
+    }
+}
@@ -0,0 +1,404 @@
+package ch.trillian.dufour;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+// imports tiles from and exports tiles to MBTiles files, one file after the other
+// the zoom level is the layer's URL name and rows are counted from the bottom (TMS), columns and rows are those of the tile URLs
+public class MBTilesTransfer implements Runnable {
+
+    private static final String TAG = "MBTILES";
+
+    // the number of tiles imported within one transaction
+    private static final int IMPORT_BATCH_SIZE = 128;
+
+    // the minimum number of milliseconds between two progress reports
+    private static final int PROGRESS_INTERVAL = 1000;
+
+    private static final String SQL_COUNT_TILES = "SELECT COUNT(*) FROM tiles";
+    private static final String SQL_GET_TILES = "SELECT zoom_level, tile_column, tile_row, tile_data FROM tiles";
+    private static final String SQL_CREATE_METADATA = "CREATE TABLE metadata (name TEXT, value TEXT)";
+    private static final String SQL_CREATE_TILES = "CREATE TABLE tiles (zoom_level INTEGER, tile_column INTEGER, tile_row INTEGER, tile_data BLOB)";
+    private static final String SQL_CREATE_TILES_INDEX = "CREATE UNIQUE INDEX tile_index ON tiles (zoom_level, tile_column, tile_row)";
+    private static final String SQL_INSERT_METADATA = "INSERT INTO metadata (name, value) VALUES (?, ?)";
+    private static final String SQL_INSERT_TILE = "INSERT OR REPLACE INTO tiles (zoom_level, tile_column, tile_row, tile_data) VALUES (?, ?, ?, ?)";
+
+    // the handler for reporting progress on the UI thread
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    private TransferListener transferListener;
+
+    private boolean destroy;
+    private Thread thread;
+
+    // the transfers not yet started
+    private final ArrayDeque<Transfer> transfers = new ArrayDeque<>();
+
+    public interface TransferListener {
+
+        void onTransferProgress(File file, int tilesDone, int tilesTotal);
+
+        void onTransferFinished(File file, boolean success);
+    }
+
+    public static class Transfer {
+
+        private final Map map;
+        private final File file;
+
+        // the store the tiles are imported into or exported from
+        private final TileStore store;
+
+        // the region to export, only its layers and bounding box are used, null for imports
+        private final DownloadJob region;
+
+        private volatile boolean cancelled;
+
+        private Transfer(Map map, File file, TileStore store, DownloadJob region) {
+
+            this.map = map;
+            this.file = file;
+            this.store = store;
+            this.region = region;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public boolean isExport() {
+            return region != null;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    public MBTilesTransfer() {
+
+        thread = new Thread(this, "MBTilesThread");
+        thread.start();
+    }
+
+    public void setTransferListener(TransferListener transferListener) {
+
+        this.transferListener = transferListener;
+    }
+
+    public void onDestroy() {
+
+        synchronized (this) {
+            destroy = true;
+            for (Transfer transfer : transfers) {
+                transfer.cancelled = true;
+            }
+            this.notify();
+        }
+    }
+
+    // orders the import of all tiles of the file which belong to a layer of the map
+    public Transfer importFile(Map map, File file) {
+
+        return importFile(map, file, MapDatabase.getInstance());
+    }
+
+    // orders the import into the given store, which must have been opened by the caller
+    public Transfer importFile(Map map, File file, TileStore store) {
+
+        return add(new Transfer(map, file, store, null));
+    }
+
+    // orders the export of the layers from minLayer to maxLayer of the map within the given CH1903 bounding box, an existing file is replaced
+    public Transfer exportFile(Map map, int minLayer, int maxLayer, float left, float top, float right, float bottom, File file) {
+
+        DownloadJob region = new DownloadJob(map.getName(), Math.max(0, minLayer), Math.min(map.getLayerCount() - 1, maxLayer), left, top, right, bottom);
+
+        return add(new Transfer(map, file, MapDatabase.getInstance(), region));
+    }
+
+    // stops the transfer, the tiles imported so far are kept, an incomplete export file is deleted
+    public void cancel(Transfer transfer) {
+
+        synchronized (this) {
+            transfer.cancelled = true;
+            transfers.remove(transfer);
+        }
+    }
+
+    private Transfer add(Transfer transfer) {
+
+        synchronized (this) {
+            transfers.add(transfer);
+            this.notify();
+        }
+
+        return transfer;
+    }
+
+    public void run() {
+
+        Log.i(TAG, "MBTilesThread started.");
+
+        MapDatabase database = MapDatabase.getInstance();
+
+        try {
+
+            database.openDatabase();
+
+            while (true) {
+
+                Transfer transfer;
+
+                synchronized (this) {
+
+                    if (destroy) {
+                        break;
+                    }
+
+                    if ((transfer = transfers.poll()) == null) {
+                        this.wait();
+                        continue;
+                    }
+                }
+
+                long start = System.currentTimeMillis();
+                boolean success = false;
+
+                try {
+                    success = transfer.isExport() ? exportTiles(transfer.store, transfer) : importTiles(transfer.store, transfer);
+                } catch (Exception e) {
+                    Log.w(TAG, "Exception: " + e.getMessage(), e);
+                }
+
+                if (!success && transfer.isExport() && !transfer.file.delete()) {
+                    Log.w(TAG, "Can't delete " + transfer.file);
+                }
+
+                Log.i(TAG, String.format("%s %s %s in %d ms", transfer.isExport() ? "Exported" : "Imported", transfer.file, success ? "successfully" : "unsuccessfully", (System.currentTimeMillis() - start)));
+
+                reportFinished(transfer, success);
+            }
+
+        } catch (InterruptedException e) {
+            Log.w(TAG, "MBTilesThread has been interrupted.");
+        }
+
+        database.closeDatabase();
+
+        Log.i(TAG, "MBTilesThread has been shut down.");
+    }
+
+    // streams the tiles from the file into the store in batches, tiles read meanwhile are not blocked by this
+    private boolean importTiles(TileStore store, Transfer transfer) {
+
+        // the layers of the map by zoom level
+        HashMap<Integer, Layer> layers = new HashMap<>();
+        for (Layer layer : transfer.map.getLayers()) {
+            try {
+                layers.put(Integer.parseInt(layer.getUrlName()), layer);
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Layer without zoom level: " + layer.getName());
+            }
+        }
+
+        try (SQLiteDatabase file = SQLiteDatabase.openDatabase(transfer.file.getPath(), null, SQLiteDatabase.OPEN_READONLY)) {
+
+            int tilesTotal = 0;
+            try (Cursor cursor = file.rawQuery(SQL_COUNT_TILES, null)) {
+                if (cursor.moveToFirst()) {
+                    tilesTotal = cursor.getInt(0);
+                }
+            }
+
+            int tilesDone = 0;
+            int tilesSkipped = 0;
+            long lastProgress = 0;
+            long now = System.currentTimeMillis();
+            ArrayList<TileWriter.PendingWrite> writes = new ArrayList<>(IMPORT_BATCH_SIZE);
+
+            // the tiles written before a cancel are kept
+            store.beginWrites();
+            try (Cursor cursor = file.rawQuery(SQL_GET_TILES, null)) {
+                while (cursor.moveToNext()) {
+
+                    if (transfer.isCancelled()) {
+                        store.writeTiles(writes);
+                        return false;
+                    }
+
+                    tilesDone++;
+
+                    // skip tiles of other layers or outside of the layer
+                    Layer layer = layers.get(cursor.getInt(0));
+                    int x = layer == null ? -1 : layer.getTileX(cursor.getInt(1));
+                    int y = layer == null ? -1 : layer.getTileY(Math.max(layer.getTopTile(), layer.getBottomTile()) - cursor.getInt(2));
+                    if (layer == null || !layer.hasTile(x, y)) {
+                        tilesSkipped++;
+                        continue;
+                    }
+
+                    Tile tile = new Tile(layer, x, y);
+                    tile.setLastUsed(now);
+                    tile.setFetchedAt(now);
+                    tile.setOK();
+                    // imported for offline use like downloaded regions, so a large import doesn't evict its own tiles
+                    writes.add(new TileWriter.PendingWrite(tile, cursor.getBlob(3), true, TileTable.PIN_IMPORT));
+
+                    if (writes.size() >= IMPORT_BATCH_SIZE) {
+                        store.writeTiles(writes);
+                        writes.clear();
+                    }
+
+                    if (System.currentTimeMillis() - lastProgress > PROGRESS_INTERVAL) {
+                        lastProgress = System.currentTimeMillis();
+                        reportProgress(transfer, tilesDone, tilesTotal);
+                    }
+                }
+
+                store.writeTiles(writes);
+
+            } finally {
+                store.endWrites();
+            }
+
+            reportProgress(transfer, tilesDone, tilesTotal);
+
+            Log.i(TAG, String.format("Imported %d of %d tiles from %s (skipped=%d)", tilesDone - tilesSkipped, tilesTotal, transfer.file, tilesSkipped));
+        }
+
+        return true;
+    }
+
+    // copies the stored tiles within the region into a new file, one transaction per layer
+    private boolean exportTiles(TileStore store, final Transfer transfer) {
+
+        DownloadJob region = transfer.region;
+
+        if (transfer.file.exists() && !transfer.file.delete()) {
+            Log.w(TAG, "Can't replace " + transfer.file);
+            return false;
+        }
+
+        int tilesTotal = 0;
+        for (int i = region.getMinLayer(); i <= region.getMaxLayer(); i++) {
+            tilesTotal += region.getTileCount(transfer.map.getLayer(i));
+        }
+
+        try (SQLiteDatabase file = SQLiteDatabase.openDatabase(transfer.file.getPath(), null, SQLiteDatabase.CREATE_IF_NECESSARY)) {
+
+            file.execSQL(SQL_CREATE_METADATA);
+            file.execSQL(SQL_CREATE_TILES);
+            file.execSQL(SQL_CREATE_TILES_INDEX);
+
+            Layer minLayer = transfer.map.getLayer(region.getMinLayer());
+            Layer maxLayer = transfer.map.getLayer(region.getMaxLayer());
+            file.execSQL(SQL_INSERT_METADATA, new Object[]{"name", transfer.map.getName()});
+            file.execSQL(SQL_INSERT_METADATA, new Object[]{"type", "baselayer"});
+            file.execSQL(SQL_INSERT_METADATA, new Object[]{"version", "1.1"});
+            file.execSQL(SQL_INSERT_METADATA, new Object[]{"description", "CH1903 tiles of " + transfer.map.getName()});
+            file.execSQL(SQL_INSERT_METADATA, new Object[]{"format", minLayer.getImageFormat()});
+            file.execSQL(SQL_INSERT_METADATA, new Object[]{"minzoom", minLayer.getUrlName()});
+            file.execSQL(SQL_INSERT_METADATA, new Object[]{"maxzoom", maxLayer.getUrlName()});
+
+            final SQLiteStatement insertTileStatement = file.compileStatement(SQL_INSERT_TILE);
+
+            try {
+
+                int tilesDone = 0;
+                long lastProgress = 0;
+
+                for (int i = region.getMinLayer(); i <= region.getMaxLayer(); i++) {
+
+                    final Layer layer = transfer.map.getLayer(i);
+                    final int zoom = Integer.parseInt(layer.getUrlName());
+                    final int maxUrlY = Math.max(layer.getTopTile(), layer.getBottomTile());
+                    int minX = region.getMinTileX(layer);
+                    int maxX = region.getMaxTileX(layer);
+
+                    file.beginTransaction();
+                    try {
+
+                        for (int y = region.getMinTileY(layer); y <= region.getMaxTileY(layer); y++) {
+
+                            if (transfer.isCancelled()) {
+                                return false;
+                            }
+
+                            store.readTileImages(layer, minX, maxX, y, new TileStore.TileImageConsumer() {
+
+                                @Override
+                                public void onTileImage(int tileX, int tileY, byte[] image) {
+                                    insertTileStatement.clearBindings();
+                                    insertTileStatement.bindLong(1, zoom);
+                                    insertTileStatement.bindLong(2, layer.getUrlX(tileX));
+                                    insertTileStatement.bindLong(3, maxUrlY - layer.getUrlY(tileY));
+                                    insertTileStatement.bindBlob(4, image);
+                                    insertTileStatement.executeInsert();
+                                }
+                            });
+
+                            tilesDone += maxX - minX + 1;
+
+                            if (System.currentTimeMillis() - lastProgress > PROGRESS_INTERVAL) {
+                                lastProgress = System.currentTimeMillis();
+                                reportProgress(transfer, tilesDone, tilesTotal);
+                            }
+                        }
+
+                        file.setTransactionSuccessful();
+
+                    } finally {
+                        file.endTransaction();
+                    }
+                }
+
+                reportProgress(transfer, tilesDone, tilesTotal);
+
+            } finally {
+                insertTileStatement.close();
+            }
+        }
+
+        return true;
+    }
+
+    private void reportProgress(Transfer transfer, final int tilesDone, final int tilesTotal) {
+
+        final File file = transfer.file;
+
+        handler.post(new Runnable() {
+
+            @Override
+            public void run() {
+                if (transferListener != null) {
+                    transferListener.onTransferProgress(file, tilesDone, tilesTotal);
+                }
+            }
+        });
+    }
+
+    private void reportFinished(Transfer transfer, final boolean success) {
+
+        final File file = transfer.file;
+
+        handler.post(new Runnable() {
+
+            @Override
+            public void run() {
+                if (transferListener != null) {
+                    transferListener.onTransferFinished(file, success);
+                }
+            }
+        });
+    }
+}
@@ -6,6 +6,7 @@ public class Map {
 
     private final String name;
     private final Layer[] layers;
+    private int index;
     private TileCache tileCache;
     private Layer currentLayer;
 
@@ -68,6 +69,16 @@ public class Map {
         currentLayer = null;
     }
 
+    public int getIndex() {
+
+        return index;
+    }
+
+    public void setIndex(int mapIndex) {
+
+        this.index = mapIndex;
+    }
+
     public String getName() {
         return name;
     }
@@ -22,6 +22,7 @@ import android.view.Menu;
 import android.view.MenuItem;
 import android.widget.SearchView;
 
+import java.io.File;
 import java.util.Timer;
 import java.util.TimerTask;
 
@@ -44,9 +45,15 @@ public class MapActivity extends Activity {
     private static final int GPS_MIN_INTERVAL = 1000;
     private static final int GPS_MIN_DISTANCE = 0;
 
+    // the directory within the external files directory holding the offline tiles
+    private static final String PACK_DIRECTORY = "pack";
+
     private final Map[] maps = createMaps();
     private MapView mapView;
     private TileLoader tileLoader;
+    private RegionDownloader regionDownloader;
+    private MBTilesTransfer mbTilesTransfer;
+    private PackFileTileStore packStore;
 
     // true if GPS is enabled
     boolean gpsWasEnabled;
@@ -69,6 +76,29 @@ public class MapActivity extends Activity {
         tileLoader = new TileLoader(this);
         tileLoader.setLoadListener(new LoadListener());
 
+        // initialize offline tiles if there are any
+        File externalFilesDirectory = getExternalFilesDir(null);
+        if (externalFilesDirectory != null && new File(externalFilesDirectory, PACK_DIRECTORY).isDirectory()) {
+            packStore = new PackFileTileStore(new File(externalFilesDirectory, PACK_DIRECTORY));
+            packStore.openDatabase();
+            tileLoader.setPackStore(packStore);
+        }
+
+        // initialize cache, one cache with one memory budget for all maps
+        TileCache tileCache = new TileCache(TileCache.getMemoryBudget(this));
+        tileCache.setCacheListener(new CacheListener());
+        for (Map map : maps) {
+            map.setTileCache(tileCache);
+        }
+
+        // initialize offline downloads, unfinished jobs are resumed
+        regionDownloader = new RegionDownloader(maps, tileLoader.getHttpClient());
+        regionDownloader.setJobListener(new JobListener());
+
+        // initialize MBTiles import and export
+        mbTilesTransfer = new MBTilesTransfer();
+        mbTilesTransfer.setTransferListener(new TransferListener());
+
         // initialize view
         setContentView(R.layout.activity_map);
         mapView = (MapView) findViewById(R.id.map_view);
@@ -135,6 +165,10 @@ public class MapActivity extends Activity {
 
         tileLoader.onPause();
 
+        if (maps[0].getTileCache() != null) {
+            Log.i("TRILLIAN", "Cache statistics: " + maps[0].getTileCache().getStatistics());
+        }
+
         Log.w("TRILLIAN", "onStop() gpsWasEnabled=" + gpsWasEnabled);
         Log.w("TRILLIAN", "onStop() gpsWasTracking=" + gpsWasTracking);
 
@@ -160,7 +194,12 @@ public class MapActivity extends Activity {
 
         Log.w("TRILLIAN", "onDestroy()");
 
+        mbTilesTransfer.onDestroy();
+        regionDownloader.onDestroy();
         tileLoader.onDestroy();
+        if (packStore != null) {
+            packStore.closeDatabase();
+        }
 
         super.onDestroy();
     }
@@ -291,7 +330,8 @@ public class MapActivity extends Activity {
         }
     }
 
-    private Map[] createMaps() {
+    // package-private for the instrumented tests
+    static Map[] createMaps() {
 
         String urlFormat = "https://wmts.geo.admin.ch/1.0.0/ch.swisstopo.pixelkarte-farbe/default/current/2056/%1$s/%2$d/%3$d.jpeg";
 
@@ -326,10 +366,17 @@ public class MapActivity extends Activity {
                 new Layer("WW26", "26",  urlFormat, 420000f, 350000f, 0.5f, 256, 256, 0, 0, 3749, 2499),
         };
 
-        return new Map[]{
+        Map[] maps = {
                 new Map("CH", pixelkarteFarbe, 0.5f, 10.0f, 1.5f, 1.5f),
                 new Map("WW", swisstlm3dWanderwege, 1.5f, 10.0f, 1.5f, 1.5f)
         };
+
+        // set maps indexes
+        for (int i = 0; i < maps.length; i++) {
+            maps[i].setIndex(i);
+        }
+
+        return maps;
     }
 
     private class MapViewListener implements MapView.ViewListener {
@@ -341,12 +388,8 @@ public class MapActivity extends Activity {
                 return;
             }
 
-            for (Map map : maps) {
-                Log.w("TRILLIAN", "onSizeChanged: Map=" + map.getName() + (map.getTileCache() == null ? " has no old cache" : " has old cache"));
-                TileCache tileCache = new TileCache(map, TileCache.PRELOAD_SIZE, w, h);
-                tileCache.setCacheListener(new CacheListener());
-                map.setTileCache(tileCache);
-            }
+            // the cache doesn't depend on the size, all resident tiles are kept
+            Log.w("TRILLIAN", String.format("onSizeChanged: %dx%d -> %dx%d, keeping cache (%s)", oldw, oldh, w, h, maps[0].getTileCache().getStatistics()));
         }
 
         @Override
@@ -362,16 +405,69 @@ public class MapActivity extends Activity {
         }
 
         @Override
-        public void preloadRegion(Layer layer, int minTileX, int maxTileX, int minTileY, int maxTileY) {
+        public Tile onPeekTile(Layer layer, int x, int y) {
+
+            TileCache tileCache = layer.getMap().getTileCache();
+
+            if (tileCache == null) {
+                return null;
+            }
+
+            return tileCache.peekTile(layer, x, y);
+        }
+
+        @Override
+        public void preloadRegion(Layer layer, int minTileX, int maxTileX, int minTileY, int maxTileY, float velocityX, float velocityY) {
 
             TileCache tileCache = layer.getMap().getTileCache();
 
             if (tileCache != null) {
-                tileCache.preloadRegion(layer, minTileX, maxTileX, minTileY, maxTileY);
+                tileCache.preloadRegion(layer, minTileX, maxTileX, minTileY, maxTileY, velocityX, velocityY);
+            }
+        }
+
+        @Override
+        public void onFrameDrawn() {
+
+            // the maps share one cache
+            TileCache tileCache = maps[0].getTileCache();
+
+            if (tileCache != null) {
+                tileCache.onFrameDrawn();
             }
         }
     }
 
+    private class JobListener implements RegionDownloader.JobListener {
+
+        @Override
+        public void onJobProgress(long jobId, int tilesDone, int tilesTotal, long bytesDone, long etaMillis) {
+
+            Log.i("TRILLIAN", String.format("Download job %d: %d/%d tiles, %d bytes, %d s left", jobId, tilesDone, tilesTotal, bytesDone, etaMillis / 1000));
+        }
+
+        @Override
+        public void onJobFinished(long jobId, int state) {
+
+            Log.i("TRILLIAN", String.format("Download job %d finished (state=%d)", jobId, state));
+        }
+    }
+
+    private class TransferListener implements MBTilesTransfer.TransferListener {
+
+        @Override
+        public void onTransferProgress(File file, int tilesDone, int tilesTotal) {
+
+            Log.i("TRILLIAN", String.format("MBTiles %s: %d/%d tiles", file.getName(), tilesDone, tilesTotal));
+        }
+
+        @Override
+        public void onTransferFinished(File file, boolean success) {
+
+            Log.i("TRILLIAN", String.format("MBTiles %s finished (success=%b)", file.getName(), success));
+        }
+    }
+
     private class LoadListener implements TileLoader.LoadListener {
 
         @Override
@@ -404,6 +500,18 @@ public class MapActivity extends Activity {
             // Log.w("TRILLIAN", "onCancelLoadTile: " + tile);
             tileLoader.cancelLoadTile(tile);
         }
+
+        @Override
+        public void onFocusChanged(float ch1903X, float ch1903Y) {
+
+            tileLoader.setFocus(ch1903X, ch1903Y);
+        }
+
+        @Override
+        public long getLoadLatency() {
+
+            return tileLoader.getLoadLatency();
+        }
     }
 
     private void setShowInfo(boolean showInfo) {
@@ -3,46 +3,142 @@ package ch.trillian.dufour;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteStatement;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.util.Log;
 
-public class MapDatabase extends SQLiteOpenHelper {
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class MapDatabase extends SQLiteOpenHelper implements TileStore {
 
     private static final String TAG = "DATABASE";
 
     private static final String DATABASE_NAME = "map.db";
-    private static final int DATABASE_VERSION = 3;
+    private static final int DATABASE_VERSION = 9;
+
+    // the default number of image bytes to keep on DB, identical images count once
+    public static final long DEFAULT_QUOTA = 1024L * 1024 * 1024;
+
+    // once the quota is exceeded, tiles are deleted until this fraction of it is used
+    private static final float LOW_WATERMARK = 0.9f;
+
+    // the number of least recently used tiles selected at once when deleting
+    private static final int EVICT_CHUNK_SIZE = 64;
+
+    // the number of tiles whose images are moved into ImageTable per transaction
+    private static final int MIGRATE_CHUNK_SIZE = 64;
+
+    // the number of read-only connections, reads don't wait for writes in WAL mode
+    private static final int READ_CONNECTIONS = 2;
+
+    // the number of bytes of the DB file mapped into memory per connection
+    private static final long MMAP_SIZE = 64 * 1024 * 1024;
+
+    // the page cache size per connection in KB
+    private static final int CACHE_SIZE_KB = 2048;
 
     // Our singleton
     private static MapDatabase instance;
 
-    // our database
+    // our database, all writes go through this connection
     private SQLiteDatabase db;
 
+    // the read-only connections, idle ones are queued
+    private final ArrayList<SQLiteDatabase> readConnections = new ArrayList<>();
+    private final ArrayBlockingQueue<SQLiteDatabase> idleReadConnections = new ArrayBlockingQueue<>(READ_CONNECTIONS);
+
     // the number of open 'connections'
     private int openCount = 0;
 
-    // the current number of tiles
-    private int tileCount;
+    // the current number of tiles and their image bytes
+    private volatile int tileCount;
+    private volatile long byteCount;
+
+    // the current number of distinct images and their bytes as stored on DB, including the images not yet moved into ImageTable
+    private volatile int imageCount;
+    private volatile long imageByteCount;
+
+    // the key of the last tile whose image has been moved into ImageTable since open
+    private long migratedKey = -1;
+
+    // the maximum number of stored image bytes
+    private volatile long quota = DEFAULT_QUOTA;
+
+    // the usage of the layers by their IDs, the changed ones are written with the tiles
+    private final HashMap<Long, LayerUsage> usages = new HashMap<>();
+    private final HashSet<Long> changedUsages = new HashSet<>();
+
+    // the last-used times of tiles read but not yet written by key, guarded by itself rather than by the DB
+    private HashMap<Long, Long> touchedTiles = new HashMap<>();
+
+    // the tiles on DB, read at open and updated with each insert and delete
+    private final TileIndex tileIndex = new TileIndex();
+
+    // set once the index has been read, tiles are never known to be missing before
+    private volatile boolean tileIndexRead;
+
+    // the IDs of the layers from LayerTable by map and layer name, added by the writer only
+    private final ConcurrentHashMap<String, Long> layerIds = new ConcurrentHashMap<>();
+
+    // the statements compiled while the database is open
+    private SQLiteStatement updateBitmapStatement;
+    private SQLiteStatement updateValidationStatement;
+    private SQLiteStatement insertTileStatement;
+    private SQLiteStatement updateLastUsedStatement;
+    private SQLiteStatement deleteTileStatement;
+    private SQLiteStatement findImageStatement;
+    private SQLiteStatement addReferenceStatement;
+    private SQLiteStatement insertImageStatement;
+    private SQLiteStatement releaseImageStatement;
+    private SQLiteStatement readUnusedImageSizeStatement;
+    private SQLiteStatement deleteImageStatement;
+    private SQLiteStatement migrateImageStatement;
+    private SQLiteStatement insertLayerStatement;
+    private SQLiteStatement updateUsageStatement;
+    private SQLiteStatement pinTilesStatement;
+    private SQLiteStatement insertJobStatement;
+    private SQLiteStatement updateJobStatement;
+    private SQLiteStatement deleteJobStatement;
+
+    // statistics
+    private final AtomicInteger readCount = new AtomicInteger();
+    private final AtomicInteger tilesReadCount = new AtomicInteger();
+    private final AtomicLong readMillis = new AtomicLong();
+    private final AtomicLong readWaitMillis = new AtomicLong();
 
     private MapDatabase(Context context) {
 
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+
+        setWriteAheadLoggingEnabled(true);
     }
 
     @Override
     public void onCreate(SQLiteDatabase database) {
 
+        LayerTable.onCreate(database);
+        ImageTable.onCreate(database);
         TileTable.onCreate(database);
+        JobTable.onCreate(database);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase database, int oldVersion, int newVersion) {
 
+        LayerTable.onUpgrade(database, oldVersion, newVersion);
+        ImageTable.onUpgrade(database, oldVersion, newVersion);
         TileTable.onUpgrade(database, oldVersion, newVersion);
+        JobTable.onUpgrade(database, oldVersion, newVersion);
     }
 
     public static MapDatabase newInstance(Context context) {
@@ -59,14 +155,47 @@ public class MapDatabase extends SQLiteOpenHelper {
         return instance;
     }
 
+    @Override
     public synchronized void openDatabase() {
 
         long start = System.currentTimeMillis();
 
         if (openCount == 0) {
             db = getWritableDatabase();
-            tileCount = readTileCount();
-            Log.i(TAG, String.format("Opened (tileCount=%d)", tileCount));
+            configure(db);
+            readLayers();
+            readImageUsage();
+            readTileIndex();
+
+            for (int i = 0; i < READ_CONNECTIONS; i++) {
+                SQLiteDatabase readConnection = SQLiteDatabase.openDatabase(db.getPath(), null, SQLiteDatabase.OPEN_READONLY);
+                configure(readConnection);
+                readConnections.add(readConnection);
+                idleReadConnections.add(readConnection);
+            }
+
+            // compiled once per open, reads are cached by the connection's prepared statement cache
+            updateBitmapStatement = db.compileStatement(SQL_UPDATE_BITMAP);
+            updateValidationStatement = db.compileStatement(SQL_UPDATE_VALIDATION);
+            insertTileStatement = db.compileStatement(SQL_INSERT_TILE);
+            updateLastUsedStatement = db.compileStatement(SQL_UPDATE_LAST_USED);
+            deleteTileStatement = db.compileStatement(SQL_DELETE_TILE);
+            findImageStatement = db.compileStatement(ImageTable.SQL_FIND_IMAGE);
+            addReferenceStatement = db.compileStatement(ImageTable.SQL_ADD_REFERENCE);
+            insertImageStatement = db.compileStatement(ImageTable.SQL_INSERT_IMAGE);
+            releaseImageStatement = db.compileStatement(SQL_RELEASE_IMAGE);
+            readUnusedImageSizeStatement = db.compileStatement(SQL_GET_UNUSED_IMAGE_SIZE);
+            deleteImageStatement = db.compileStatement(SQL_DELETE_IMAGE);
+            migrateImageStatement = db.compileStatement(SQL_MIGRATE_IMAGE);
+            migratedKey = -1;
+            insertLayerStatement = db.compileStatement(SQL_INSERT_LAYER);
+            updateUsageStatement = db.compileStatement(SQL_UPDATE_USAGE);
+            pinTilesStatement = db.compileStatement(SQL_PIN_TILES);
+            insertJobStatement = db.compileStatement(SQL_INSERT_JOB);
+            updateJobStatement = db.compileStatement(SQL_UPDATE_JOB);
+            deleteJobStatement = db.compileStatement(SQL_DELETE_JOB);
+
+            Log.i(TAG, String.format("Opened (tileCount=%d, byteCount=%d, imageCount=%d, imageByteCount=%d, layers=%d)", tileCount, byteCount, imageCount, imageByteCount, layerIds.size()));
         }
 
         openCount++;
@@ -74,6 +203,7 @@ public class MapDatabase extends SQLiteOpenHelper {
         Log.i(TAG, String.format("Opened in %d ms (openCount=%d)", (System.currentTimeMillis() - start), openCount));
     }
 
+    @Override
     public synchronized void closeDatabase() {
 
         long start = System.currentTimeMillis();
@@ -81,6 +211,31 @@ public class MapDatabase extends SQLiteOpenHelper {
         openCount--;
 
         if (openCount == 0) {
+            tileIndexRead = false;
+            tileIndex.clear();
+            updateBitmapStatement.close();
+            updateValidationStatement.close();
+            insertTileStatement.close();
+            updateLastUsedStatement.close();
+            deleteTileStatement.close();
+            findImageStatement.close();
+            addReferenceStatement.close();
+            insertImageStatement.close();
+            releaseImageStatement.close();
+            readUnusedImageSizeStatement.close();
+            deleteImageStatement.close();
+            migrateImageStatement.close();
+            insertLayerStatement.close();
+            updateUsageStatement.close();
+            pinTilesStatement.close();
+            insertJobStatement.close();
+            updateJobStatement.close();
+            deleteJobStatement.close();
+            for (SQLiteDatabase readConnection : readConnections) {
+                readConnection.close();
+            }
+            readConnections.clear();
+            idleReadConnections.clear();
             db.close();
             db = null;
         }
@@ -93,42 +248,250 @@ public class MapDatabase extends SQLiteOpenHelper {
         return tileCount;
     }
 
-    private static final String SQL_GET_TILE_COUNT = "SELECT COUNT(*) FROM " + TileTable.TABLE_NAME;
+    public long getByteCount() {
+
+        return byteCount;
+    }
+
+    public int getImageCount() {
+
+        return imageCount;
+    }
+
+    public long getImageByteCount() {
+
+        return imageByteCount;
+    }
 
-    public int readTileCount() {
+    public long getQuota() {
 
-        Cursor cursor = db.rawQuery(SQL_GET_TILE_COUNT, new String[]{});
+        return quota;
+    }
 
-        if (cursor == null) {
-            return -1;
+    // sets the maximum number of stored image bytes, it is applied with the next write
+    public void setQuota(long quota) {
 
+        this.quota = quota;
+    }
+
+    // returns the usage of all layers which have been written
+    public synchronized List<LayerUsage> getUsage() {
+
+        ArrayList<LayerUsage> result = new ArrayList<>(usages.size());
+        for (LayerUsage usage : usages.values()) {
+            result.add(new LayerUsage(usage));
+        }
+
+        return result;
+    }
+
+    // returns true if the tile is certainly not on DB, false if it may be or the index has not been read yet
+    public boolean isMissing(Tile tile) {
+
+        if (!tileIndexRead) {
+            return false;
+        }
+
+        long layerId = findLayerId(tile.getLayer());
+        if (layerId < 0) {
+            return true;
         }
 
+        return !tileIndex.contains(TileTable.key(layerId, tile.getX(), tile.getY()));
+    }
+
+    public String getIndexStatistics() {
+
+        return tileIndex.getStatistics();
+    }
+
+    @Override
+    public String getStatistics() {
+
+        int reads = readCount.get();
+
+        // the bytes of all tiles' images per byte stored, 1 without any duplicates
+        long storedBytes = imageByteCount;
+        float dedupRatio = storedBytes == 0 ? 1f : (float) byteCount / storedBytes;
+
+        return String.format("tileCount=%d, byteCount=%d, imageCount=%d, imageByteCount=%d, dedupRatio=%.2f, quota=%d, reads=%d, tilesRead=%d, readMillis=%d, readWaitMillis=%d, avgReadMillis=%.1f", tileCount, byteCount, imageCount, storedBytes, dedupRatio, quota, reads, tilesReadCount.get(), readMillis.get(), readWaitMillis.get(), reads == 0 ? 0f : (float) readMillis.get() / reads);
+    }
+
+    // sets the pragmas which apply per connection
+    private static void configure(SQLiteDatabase connection) {
+
+        long mmapSize = queryPragma(connection, "mmap_size = " + MMAP_SIZE);
+        queryPragma(connection, "cache_size = -" + CACHE_SIZE_KB);
+
+        Log.i(TAG, String.format("Configured %s connection (mmapSize=%d, cacheSize=%d KB)", connection.isReadOnly() ? "read" : "write", mmapSize, CACHE_SIZE_KB));
+    }
+
+    // returns the first column of the pragma's result or -1 if there is none
+    private static long queryPragma(SQLiteDatabase connection, String pragma) {
+
+        try (Cursor cursor = connection.rawQuery("PRAGMA " + pragma, null)) {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        }
+    }
+
+    // returns an idle read connection, waits until one is released if there is none
+    private SQLiteDatabase acquireReadConnection() {
+
+        long start = System.currentTimeMillis();
+        boolean interrupted = false;
+
         try {
-            if (cursor.moveToFirst()) {
-                return cursor.getInt(0);
+            while (true) {
+                try {
+                    SQLiteDatabase readConnection = idleReadConnections.take();
+                    readWaitMillis.addAndGet(System.currentTimeMillis() - start);
+                    return readConnection;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
             }
         } finally {
-            cursor.close();
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void releaseReadConnection(SQLiteDatabase readConnection) {
+
+        idleReadConnections.offer(readConnection);
+    }
+
+    private static final String SQL_GET_LAYERS = "SELECT " + LayerTable.COL_ID + ", " + LayerTable.COL_MAP_ID + ", " + LayerTable.COL_LAYER_ID + ", " + LayerTable.COL_TILE_COUNT + ", " + LayerTable.COL_BYTE_COUNT + " FROM " + LayerTable.TABLE_NAME;
+
+    // reads the layers' IDs and usage, the totals are their sums
+    private void readLayers() {
+
+        layerIds.clear();
+        usages.clear();
+        changedUsages.clear();
+        tileCount = 0;
+        byteCount = 0;
+
+        try (Cursor cursor = db.rawQuery(SQL_GET_LAYERS, null)) {
+            while (cursor.moveToNext()) {
+                LayerUsage usage = new LayerUsage(cursor.getString(1), cursor.getString(2), cursor.getInt(3), cursor.getLong(4));
+                layerIds.put(layerName(usage.getMapName(), usage.getLayerName()), cursor.getLong(0));
+                usages.put(cursor.getLong(0), usage);
+                tileCount += usage.getTileCount();
+                byteCount += usage.getByteCount();
+            }
+        }
+    }
+
+    // reads the layers, counters and index from DB, which replaces their changes by a transaction which has been rolled back
+    private void readState() {
+
+        Log.w(TAG, "Transaction rolled back, reading state from DB");
+
+        readLayers();
+        readImageUsage();
+        readTileIndex();
+    }
+
+    private static final String SQL_GET_IMAGE_USAGE = "SELECT COUNT(*), IFNULL(SUM(" + ImageTable.COL_SIZE + "), 0) FROM " + ImageTable.TABLE_NAME;
+
+    // reads the number and bytes of the images in ImageTable, the ones not yet moved there are added by readTileIndex()
+    private void readImageUsage() {
+
+        try (Cursor cursor = db.rawQuery(SQL_GET_IMAGE_USAGE, null)) {
+            if (cursor.moveToFirst()) {
+                imageCount = cursor.getInt(0);
+                imageByteCount = cursor.getLong(1);
+            }
+        }
+    }
+
+    private static final String SQL_GET_TILE_KEYS = "SELECT " + TileTable.COL_KEY + ", " + TileTable.COL_SIZE + ", " + TileTable.COL_IMAGE + " IS NOT NULL FROM " + TileTable.TABLE_NAME;
+
+    // reads the keys of all tiles into the index and counts the images not yet moved into ImageTable, which are stored once per tile
+    // once all images have been moved this reads small rows only
+    private void readTileIndex() {
+
+        long start = System.currentTimeMillis();
+
+        tileIndex.clear();
+        try (Cursor cursor = db.rawQuery(SQL_GET_TILE_KEYS, null)) {
+            while (cursor.moveToNext()) {
+                tileIndex.add(cursor.getLong(0));
+                if (cursor.getInt(2) != 0) {
+                    imageCount++;
+                    imageByteCount += cursor.getLong(1);
+                }
+            }
+        }
+        tileIndexRead = true;
+
+        Log.i(TAG, String.format("Read tile index in %d ms (%s)", (System.currentTimeMillis() - start), tileIndex.getStatistics()));
+    }
+
+    private static String layerName(String mapName, String layerName) {
+
+        return mapName + "/" + layerName;
+    }
+
+    private static final String SQL_INSERT_LAYER = "INSERT INTO " + LayerTable.TABLE_NAME + " (" + LayerTable.COL_MAP_ID + "," + LayerTable.COL_LAYER_ID + ") VALUES(?,?)";
+
+    // returns the layer's ID, a new one is assigned on first use, the caller must hold the monitor
+    private long getLayerId(Layer layer) {
+
+        String name = layerName(layer.getMap().getName(), layer.getName());
+        Long layerId = layerIds.get(name);
+
+        if (layerId == null) {
+            insertLayerStatement.clearBindings();
+            insertLayerStatement.bindString(1, layer.getMap().getName());
+            insertLayerStatement.bindString(2, layer.getName());
+            layerId = insertLayerStatement.executeInsert();
+            layerIds.put(name, layerId);
+            usages.put(layerId, new LayerUsage(layer.getMap().getName(), layer.getName(), 0, 0));
+            Log.i(TAG, String.format("Added layer %s with ID %d", name, layerId));
         }
 
-        return -1;
+        return layerId;
     }
 
-    private static final String SQL_GET_TILE_IMAGE = "SELECT " + TileTable.COL_LAST_USED + ", " + TileTable.COL_IMAGE + " FROM " + TileTable.TABLE_NAME + " WHERE " + TileTable.COL_MAP_ID + " = ? AND " + TileTable.COL_LAYER_ID + " = ? AND " + TileTable.COL_X + " = ? AND " + TileTable.COL_Y + "=?";
+    // returns the layer's ID or -1 if no tile of the layer has ever been written
+    private long findLayerId(Layer layer) {
+
+        Long layerId = layerIds.get(layerName(layer.getMap().getName(), layer.getName()));
+
+        return layerId == null ? -1 : layerId;
+    }
+
+    // the images are joined from ImageTable, where identical images are stored once, or taken from the tile if not yet moved there
+    private static final String IMAGE_DATA = "IFNULL(" + ImageTable.TABLE_NAME + "." + ImageTable.COL_DATA + ", " + TileTable.TABLE_NAME + "." + TileTable.COL_IMAGE + ")";
+
+    private static final String SQL_GET_TILE_IMAGE = "SELECT " + TileTable.COL_LAST_USED + ", " + IMAGE_DATA + ", " + TileTable.COL_ETAG + ", " + TileTable.COL_LAST_MODIFIED + ", " + TileTable.COL_FETCHED_AT + " FROM " + TileTable.TABLE_NAME + " LEFT JOIN " + ImageTable.TABLE_NAME + " ON " + ImageTable.TABLE_NAME + "." + ImageTable.COL_ID + " = " + TileTable.COL_IMAGE_ID + " WHERE " + TileTable.COL_KEY + " = ?";
 
-    public synchronized boolean readTile(Tile tile) {
+    public boolean readTile(Tile tile) {
 
-        try (Cursor cursor = db.rawQuery(SQL_GET_TILE_IMAGE, new String[]{tile.getLayer().getMap().getName(), tile.getLayer().getName(), String.valueOf(tile.getX()), String.valueOf(tile.getY())})) {
+        long layerId = findLayerId(tile.getLayer());
+        if (layerId < 0) {
+            return false;
+        }
+
+        String key = String.valueOf(TileTable.key(layerId, tile.getX(), tile.getY()));
+
+        SQLiteDatabase readConnection = acquireReadConnection();
+        try (Cursor cursor = readConnection.rawQuery(SQL_GET_TILE_IMAGE, new String[]{key})) {
             if (cursor.moveToFirst()) {
 
                 tile.setLastUsed(cursor.getLong(0));
+                tile.setEtag(cursor.getString(2));
+                tile.setLastModified(cursor.getString(3));
+                tile.setFetchedAt(cursor.getLong(4));
                 tile.setOK();
                 tile.setBitmap(null);
 
                 byte[] encodedImage = cursor.getBlob(1);
                 if (encodedImage != null) {
-                    Bitmap bitmap = BitmapFactory.decodeByteArray(encodedImage, 0, encodedImage.length);
+                    Bitmap bitmap = TileDecoder.decode(encodedImage, tile.getLayer());
                     if (bitmap != null) {
                         tile.setBitmap(bitmap);
                     }
@@ -136,104 +499,772 @@ public class MapDatabase extends SQLiteOpenHelper {
 
                 return true;
             }
+        } finally {
+            releaseReadConnection(readConnection);
         }
 
         return false;
     }
 
-    private static final String SQL_EXISTS_TILE = "SELECT 1 FROM " + TileTable.TABLE_NAME + " WHERE " + TileTable.COL_MAP_ID + " = ? AND " + TileTable.COL_LAYER_ID + " = ? AND " + TileTable.COL_X + " = ? AND " + TileTable.COL_Y + "=?";
+    private static final String SQL_GET_TILE_IMAGES = "SELECT " + TileTable.COL_KEY + ", " + TileTable.COL_LAST_USED + ", " + IMAGE_DATA + ", " + TileTable.COL_ETAG + ", " + TileTable.COL_LAST_MODIFIED + ", " + TileTable.COL_FETCHED_AT + " FROM " + TileTable.TABLE_NAME + " LEFT JOIN " + ImageTable.TABLE_NAME + " ON " + ImageTable.TABLE_NAME + "." + ImageTable.COL_ID + " = " + TileTable.COL_IMAGE_ID + " WHERE " + TileTable.COL_KEY + " BETWEEN ? AND ?";
 
-    public boolean isTileExisting(Tile tile) {
+    // reads all given tiles of the same layer with one range query per row, returns the number of tiles found
+    @Override
+    public int readTiles(Layer layer, List<Tile> tiles, TileConsumer consumer) {
 
-        try (Cursor cursor = db.rawQuery(SQL_EXISTS_TILE, new String[]{tile.getLayer().getMap().getName(), tile.getLayer().getName(), String.valueOf(tile.getX()), String.valueOf(tile.getY())})) {
-            if (cursor.moveToFirst()) {
-                return true;
+        long start = System.currentTimeMillis();
+
+        long layerId = findLayerId(layer);
+        if (layerId < 0) {
+            return 0;
+        }
+
+        // the requested range of x by row
+        HashMap<Integer, int[]> rows = new HashMap<>();
+        HashMap<Long, Tile> tilesByKey = new HashMap<>();
+        for (Tile tile : tiles) {
+            int[] row = rows.get(tile.getY());
+            if (row == null) {
+                rows.put(tile.getY(), new int[]{tile.getX(), tile.getX()});
+            } else {
+                row[0] = Math.min(row[0], tile.getX());
+                row[1] = Math.max(row[1], tile.getX());
             }
+            tilesByKey.put(TileTable.key(layerId, tile.getX(), tile.getY()), tile);
         }
 
-        return false;
+        int found = 0;
+
+        SQLiteDatabase readConnection = acquireReadConnection();
+        try {
+            for (java.util.Map.Entry<Integer, int[]> row : rows.entrySet()) {
+
+                // the keys of a row are contiguous, a range within one row never reads tiles of other rows
+                String minKey = String.valueOf(TileTable.key(layerId, row.getValue()[0], row.getKey()));
+                String maxKey = String.valueOf(TileTable.key(layerId, row.getValue()[1], row.getKey()));
+                found += readTiles(readConnection, minKey, maxKey, tilesByKey, consumer);
+            }
+        } finally {
+            releaseReadConnection(readConnection);
+        }
+
+        long millis = System.currentTimeMillis() - start;
+        readCount.incrementAndGet();
+        tilesReadCount.addAndGet(found);
+        readMillis.addAndGet(millis);
+
+        Log.i(TAG, String.format("Read %d of %d tiles in %d rows in %d ms", found, tiles.size(), rows.size(), millis));
+
+        return found;
+    }
+
+    // reads the requested tiles within the key range, returns the number of tiles found
+    private static int readTiles(SQLiteDatabase readConnection, String minKey, String maxKey, HashMap<Long, Tile> tilesByKey, TileConsumer consumer) {
+
+        int found = 0;
+
+        try (Cursor cursor = readConnection.rawQuery(SQL_GET_TILE_IMAGES, new String[]{minKey, maxKey})) {
+            while (cursor.moveToNext()) {
+
+                // skip tiles within the range which have not been requested
+                Tile tile = tilesByKey.get(cursor.getLong(0));
+                if (tile == null) {
+                    continue;
+                }
+
+                tile.setLastUsed(cursor.getLong(1));
+                tile.setEtag(cursor.getString(3));
+                tile.setLastModified(cursor.getString(4));
+                tile.setFetchedAt(cursor.getLong(5));
+                tile.setOK();
+                tile.setBitmap(null);
+
+                byte[] encodedImage = cursor.getBlob(2);
+                consumer.onTile(tile, encodedImage == null ? null : ByteBuffer.wrap(encodedImage));
+
+                found++;
+            }
+        }
+
+        return found;
     }
 
-    private static final String SQL_UPDATE_LAST_USED = "UPDATE " + TileTable.TABLE_NAME + " SET " + TileTable.COL_LAST_USED + "=? WHERE " + TileTable.COL_MAP_ID + " = ? AND "  + TileTable.COL_LAYER_ID + " = ? AND " + TileTable.COL_X + " = ? AND " + TileTable.COL_Y + "=?";
+    // records the tile's last-used time without writing to DB, it is written by writeLastUsed() or before deleting tiles
+    public void touch(Tile tile) {
+
+        long layerId = findLayerId(tile.getLayer());
+        if (layerId < 0) {
+            return;
+        }
+
+        long key = TileTable.key(layerId, tile.getX(), tile.getY());
+
+        synchronized (touchedTiles) {
+            touchedTiles.put(key, tile.getLastUsed());
+        }
+    }
 
-    public synchronized void updateLastUsed(Tile tile) {
+    // writes the recorded last-used times within one transaction
+    public synchronized void writeLastUsed() {
+
+        db.beginTransaction();
+        try {
+            updateLastUsed();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static final String SQL_UPDATE_LAST_USED = "UPDATE " + TileTable.TABLE_NAME + " SET " + TileTable.COL_LAST_USED + "=MAX(" + TileTable.COL_LAST_USED + ",?) WHERE " + TileTable.COL_KEY + " = ?";
+
+    // writes the recorded last-used times, must be called within a transaction
+    private void updateLastUsed() {
+
+        long start = System.currentTimeMillis();
+
+        HashMap<Long, Long> touched;
+        synchronized (touchedTiles) {
+            if (touchedTiles.isEmpty()) {
+                return;
+            }
+            touched = touchedTiles;
+            touchedTiles = new HashMap<>();
+        }
+
+        for (java.util.Map.Entry<Long, Long> entry : touched.entrySet()) {
+            updateLastUsedStatement.clearBindings();
+            updateLastUsedStatement.bindLong(1, entry.getValue());
+            updateLastUsedStatement.bindLong(2, entry.getKey());
+            updateLastUsedStatement.executeUpdateDelete();
+        }
+
+        Log.i(TAG, String.format("Updated last-used of %d tiles in %d ms", touched.size(), (System.currentTimeMillis() - start)));
+    }
+
+    private static final String SQL_UPDATE_BITMAP = "UPDATE " + TileTable.TABLE_NAME + " SET " + TileTable.COL_LAST_USED + "=?," + TileTable.COL_IMAGE_ID + "=?," + TileTable.COL_ETAG + "=?," + TileTable.COL_LAST_MODIFIED + "=?," + TileTable.COL_FETCHED_AT + "=?," + TileTable.COL_SIZE + "=?," + TileTable.COL_IMAGE + "=NULL," + TileTable.COL_PINNED + "=" + TileTable.COL_PINNED + " | ? WHERE " + TileTable.COL_KEY + " = ?";
+
+    private static final String SQL_UPDATE_VALIDATION = "UPDATE " + TileTable.TABLE_NAME + " SET " + TileTable.COL_ETAG + "=?," + TileTable.COL_LAST_MODIFIED + "=?," + TileTable.COL_FETCHED_AT + "=? WHERE " + TileTable.COL_KEY + " = ?";
+
+    private static final String SQL_INSERT_TILE = "INSERT INTO " + TileTable.TABLE_NAME + " (" + TileTable.COL_KEY + "," + TileTable.COL_LAST_USED + "," + TileTable.COL_IMAGE_ID + "," + TileTable.COL_ETAG + "," + TileTable.COL_LAST_MODIFIED + "," + TileTable.COL_FETCHED_AT + "," + TileTable.COL_SIZE + "," + TileTable.COL_PINNED + ") VALUES(?,?,?,?,?,?,?,?)";
+
+    // writes all tiles within one transaction, existing tiles are updated, new ones are inserted
+    @Override
+    public synchronized void writeTiles(List<TileWriter.PendingWrite> writes) {
+
+        writeTiles(writes, null);
+    }
+
+    // each batch is committed by writeTiles()
+    @Override
+    public void beginWrites() {
+    }
+
+    @Override
+    public void endWrites() {
+    }
+
+    // writes all tiles and the job's progress within one transaction
+    public synchronized void writeTiles(List<TileWriter.PendingWrite> writes, DownloadJob job) {
 
         long start = System.currentTimeMillis();
 
-        SQLiteStatement updateLastUsedStatement = db.compileStatement(SQL_UPDATE_LAST_USED);
-        updateLastUsedStatement.clearBindings();
-        updateLastUsedStatement.bindLong(1, tile.getLastUsed());
-        updateLastUsedStatement.bindString(2, tile.getLayer().getName());
-        updateLastUsedStatement.bindString(3, tile.getLayer().getName());
-        updateLastUsedStatement.bindLong(4, tile.getX());
-        updateLastUsedStatement.bindLong(5, tile.getY());
-        updateLastUsedStatement.executeUpdateDelete();
+        int inserted = 0;
+        int updated = 0;
+
+        boolean successful = false;
+        db.beginTransaction();
+        try {
+
+            for (TileWriter.PendingWrite write : writes) {
+
+                Tile tile = write.getTile();
+                long layerId = getLayerId(tile.getLayer());
+                long key = TileTable.key(layerId, tile.getX(), tile.getY());
+
+                if (!write.isImageWrite()) {
+                    updateValidation(updateValidationStatement, key, tile);
+                    updated++;
+                    continue;
+                }
+
+                // the new image is referenced before the old one is released, so an unchanged image is kept
+                byte[] image = write.getImage();
+                int size = image == null ? 0 : image.length;
+                long imageId = image == null ? -1 : acquireImage(image);
+
+                // update the existing row or insert a new one if there is none
+                long[] old = readTileImage(key);
+                if (old != null) {
+                    updateBitmap(updateBitmapStatement, key, tile, imageId, size, write.getPins());
+                    releaseImage(old[1], old[2] != 0, old[0]);
+                    addUsage(layerId, 0, size - old[0]);
+                    updated++;
+                } else if (insertTile(insertTileStatement, key, tile, imageId, size, write.getPins()) >= 0) {
+                    tileIndex.add(key);
+                    addUsage(layerId, 1, size);
+                    inserted++;
+                }
+            }
+
+            // make room for the new tiles
+            if (imageByteCount > quota) {
+                deleteLeastRecentlyUsed((long) (quota * LOW_WATERMARK));
+            }
+
+            if (job != null) {
+                updateJob(job);
+            }
+
+            writeUsage();
+
+            db.setTransactionSuccessful();
+            successful = true;
+
+        } finally {
+            endTransaction(successful);
+        }
+
+        Log.i(TAG, String.format("Wrote %d tiles (inserted=%d, updated=%d) in %d ms (tileCount=%d, byteCount=%d, imageCount=%d, imageByteCount=%d)", writes.size(), inserted, updated, (System.currentTimeMillis() - start), tileCount, byteCount, imageCount, imageByteCount));
+    }
+
+    // ends the transaction, the in-memory state is read from DB again if the transaction has been rolled back
+    private void endTransaction(boolean successful) {
 
-        Log.i(TAG, String.format("Updated last-used in %d ms", (System.currentTimeMillis() - start)));
+        boolean committed = false;
+        try {
+            db.endTransaction();
+            committed = successful;
+        } finally {
+            // the counters, layers and index have been changed along with the rows which have been rolled back
+            if (!committed) {
+                readState();
+            }
+        }
     }
 
-    private static final String SQL_UPDATE_BITMAP = "UPDATE " + TileTable.TABLE_NAME + " SET " + TileTable.COL_LAST_USED + "=?," + TileTable.COL_IMAGE + "=? WHERE " + TileTable.COL_MAP_ID + " = ? AND " + TileTable.COL_LAYER_ID + " = ? AND " + TileTable.COL_X + " = ? AND " + TileTable.COL_Y + "=?";
+    private static final String SQL_GET_LEGACY_IMAGES = "SELECT " + TileTable.COL_KEY + ", " + TileTable.COL_IMAGE + " FROM " + TileTable.TABLE_NAME + " WHERE " + TileTable.COL_KEY + " > ? AND " + TileTable.COL_IMAGE + " IS NOT NULL ORDER BY " + TileTable.COL_KEY + " LIMIT " + MIGRATE_CHUNK_SIZE;
+
+    private static final String SQL_MIGRATE_IMAGE = "UPDATE " + TileTable.TABLE_NAME + " SET " + TileTable.COL_IMAGE_ID + "=?," + TileTable.COL_IMAGE + "=NULL WHERE " + TileTable.COL_KEY + " = ?";
 
-    public synchronized void updateBitmap(Tile tile, byte[] image) {
+    // moves the images of a chunk of tiles written before version 8 into ImageTable within one transaction,
+    // returns false once there are none left, called repeatedly by the writer thread while it is idle
+    public synchronized boolean migrateImages() {
 
         long start = System.currentTimeMillis();
 
-        SQLiteStatement statement = db.compileStatement(SQL_UPDATE_BITMAP);
+        // read the chunk before changing its rows, the cursor may query again while being read
+        ArrayList<Long> keys = new ArrayList<>(MIGRATE_CHUNK_SIZE);
+        ArrayList<byte[]> images = new ArrayList<>(MIGRATE_CHUNK_SIZE);
+        try (Cursor cursor = db.rawQuery(SQL_GET_LEGACY_IMAGES, new String[]{String.valueOf(migratedKey)})) {
+            while (cursor.moveToNext()) {
+                keys.add(cursor.getLong(0));
+                images.add(cursor.getBlob(1));
+            }
+        }
+
+        if (keys.isEmpty()) {
+            return false;
+        }
+
+        boolean successful = false;
+        db.beginTransaction();
+        try {
+
+            for (int i = 0; i < keys.size(); i++) {
+
+                byte[] image = images.get(i);
+                long imageId = acquireImage(image);
+
+                migrateImageStatement.clearBindings();
+                migrateImageStatement.bindLong(1, imageId);
+                migrateImageStatement.bindLong(2, keys.get(i));
+                migrateImageStatement.executeUpdateDelete();
+
+                // the tile's own copy is gone
+                imageCount--;
+                imageByteCount -= image.length;
+            }
+
+            db.setTransactionSuccessful();
+            successful = true;
+
+        } finally {
+            endTransaction(successful);
+        }
+
+        migratedKey = keys.get(keys.size() - 1);
+
+        Log.i(TAG, String.format("Moved %d images into %s in %d ms (imageCount=%d, imageByteCount=%d)", keys.size(), ImageTable.TABLE_NAME, (System.currentTimeMillis() - start), imageCount, imageByteCount));
+
+        return keys.size() == MIGRATE_CHUNK_SIZE;
+    }
+
+    private static int updateBitmap(SQLiteStatement statement, long key, Tile tile, long imageId, int size, int pins) {
+
         statement.clearBindings();
         statement.bindLong(1, tile.getLastUsed());
-        if (image == null) {
-            statement.bindNull(2);
-        } else {
-            statement.bindBlob(2, image);
+        bindIdOrNull(statement, 2, imageId);
+        bindStringOrNull(statement, 3, tile.getEtag());
+        bindStringOrNull(statement, 4, tile.getLastModified());
+        statement.bindLong(5, tile.getFetchedAt());
+        statement.bindLong(6, size);
+        statement.bindLong(7, pins);
+        statement.bindLong(8, key);
+
+        return statement.executeUpdateDelete();
+    }
+
+    private static int updateValidation(SQLiteStatement statement, long key, Tile tile) {
+
+        statement.clearBindings();
+        bindStringOrNull(statement, 1, tile.getEtag());
+        bindStringOrNull(statement, 2, tile.getLastModified());
+        statement.bindLong(3, tile.getFetchedAt());
+        statement.bindLong(4, key);
+
+        return statement.executeUpdateDelete();
+    }
+
+    private static long insertTile(SQLiteStatement statement, long key, Tile tile, long imageId, int size, int pins) {
+
+        statement.clearBindings();
+        statement.bindLong(1, key);
+        statement.bindLong(2, tile.getLastUsed());
+        bindIdOrNull(statement, 3, imageId);
+        bindStringOrNull(statement, 4, tile.getEtag());
+        bindStringOrNull(statement, 5, tile.getLastModified());
+        statement.bindLong(6, tile.getFetchedAt());
+        statement.bindLong(7, size);
+        statement.bindLong(8, pins);
+
+        return statement.executeInsert();
+    }
+
+    private static final String SQL_GET_TILE_SIZE = "SELECT " + TileTable.COL_SIZE + ", " + TileTable.COL_IMAGE_ID + ", " + TileTable.COL_IMAGE + " IS NOT NULL FROM " + TileTable.TABLE_NAME + " WHERE " + TileTable.COL_KEY + " = ?";
+
+    // returns the size, image ID (-1 if none) and 1 if the image has not yet been moved into ImageTable of the tile on DB
+    // or null if the tile is not on DB
+    private long[] readTileImage(long key) {
+
+        try (Cursor cursor = db.rawQuery(SQL_GET_TILE_SIZE, new String[]{String.valueOf(key)})) {
+            if (cursor.moveToFirst()) {
+                return new long[]{cursor.getLong(0), cursor.isNull(1) ? -1 : cursor.getLong(1), cursor.getLong(2)};
+            }
         }
-        statement.bindString(3, tile.getLayer().getMap().getName());
-        statement.bindString(4, tile.getLayer().getName());
-        statement.bindLong(5, tile.getX());
-        statement.bindLong(6, tile.getY());
-        statement.executeUpdateDelete();
 
-        Log.i(TAG, String.format("Updated bitmap in %d ms", (System.currentTimeMillis() - start)));
+        return null;
     }
 
-    private static final String SQL_INSERT_TILE = "INSERT INTO " + TileTable.TABLE_NAME + " (" + TileTable.COL_MAP_ID + "," + TileTable.COL_LAYER_ID + "," + TileTable.COL_X + "," + TileTable.COL_Y + "," + TileTable.COL_LAST_USED + "," + TileTable.COL_IMAGE + ") VALUES(?,?,?,?,?,?)";
+    // returns the ID of the stored image, adds a reference to an identical image or stores a new one
+    private long acquireImage(byte[] image) {
+
+        byte[] hash = ImageTable.hash(image);
 
-    public synchronized void insertTile(Tile tile, byte[] image) {
+        long imageId = ImageTable.findImage(findImageStatement, hash);
+        if (imageId >= 0) {
+            ImageTable.addReference(addReferenceStatement, imageId);
+            return imageId;
+        }
+
+        imageCount++;
+        imageByteCount += image.length;
+
+        return ImageTable.insertImage(insertImageStatement, hash, image);
+    }
+
+    private static final String SQL_RELEASE_IMAGE = "UPDATE " + ImageTable.TABLE_NAME + " SET " + ImageTable.COL_REF_COUNT + "=" + ImageTable.COL_REF_COUNT + "-1 WHERE " + ImageTable.COL_ID + " = ?";
+
+    private static final String SQL_GET_UNUSED_IMAGE_SIZE = "SELECT " + ImageTable.COL_SIZE + " FROM " + ImageTable.TABLE_NAME + " WHERE " + ImageTable.COL_ID + " = ? AND " + ImageTable.COL_REF_COUNT + " <= 0";
+
+    private static final String SQL_DELETE_IMAGE = "DELETE FROM " + ImageTable.TABLE_NAME + " WHERE " + ImageTable.COL_ID + " = ?";
+
+    // removes the tile's reference to its image, the image is deleted with its last reference
+    // an image not yet moved into ImageTable is stored within the tile's row and is deleted or replaced with it
+    private void releaseImage(long imageId, boolean inTile, long size) {
+
+        if (inTile) {
+            imageCount--;
+            imageByteCount -= size;
+        }
+
+        if (imageId < 0) {
+            return;
+        }
+
+        releaseImageStatement.clearBindings();
+        releaseImageStatement.bindLong(1, imageId);
+        releaseImageStatement.executeUpdateDelete();
+
+        long unusedSize;
+        readUnusedImageSizeStatement.clearBindings();
+        readUnusedImageSizeStatement.bindLong(1, imageId);
+        try {
+            unusedSize = readUnusedImageSizeStatement.simpleQueryForLong();
+        } catch (SQLiteDoneException e) {
+            return;
+        }
+
+        deleteImageStatement.clearBindings();
+        deleteImageStatement.bindLong(1, imageId);
+        if (deleteImageStatement.executeUpdateDelete() > 0) {
+            imageCount--;
+            imageByteCount -= unusedSize;
+        }
+    }
+
+    private void addUsage(long layerId, int tiles, long bytes) {
+
+        usages.get(layerId).add(tiles, bytes);
+        changedUsages.add(layerId);
+        tileCount += tiles;
+        byteCount += bytes;
+    }
+
+    private static final String SQL_UPDATE_USAGE = "UPDATE " + LayerTable.TABLE_NAME + " SET " + LayerTable.COL_TILE_COUNT + "=?," + LayerTable.COL_BYTE_COUNT + "=? WHERE " + LayerTable.COL_ID + " = ?";
+
+    private void writeUsage() {
+
+        for (Long layerId : changedUsages) {
+            LayerUsage usage = usages.get(layerId);
+            updateUsageStatement.clearBindings();
+            updateUsageStatement.bindLong(1, usage.getTileCount());
+            updateUsageStatement.bindLong(2, usage.getByteCount());
+            updateUsageStatement.bindLong(3, layerId);
+            updateUsageStatement.executeUpdateDelete();
+        }
+        changedUsages.clear();
+    }
+
+    private static final String SQL_GET_LEAST_RECENTLY_USED = "SELECT " + TileTable.COL_KEY + ", " + TileTable.COL_SIZE + ", " + TileTable.COL_IMAGE_ID + ", " + TileTable.COL_IMAGE + " IS NOT NULL FROM " + TileTable.TABLE_NAME + " WHERE " + TileTable.COL_PINNED + " = 0 ORDER BY " + TileTable.COL_LAST_USED + " ASC LIMIT " + EVICT_CHUNK_SIZE;
+
+    private static final String SQL_DELETE_TILE = "DELETE FROM " + TileTable.TABLE_NAME + " WHERE " + TileTable.COL_KEY + " = ?";
+
+    // deletes the least recently used tiles which are not pinned until at most maxBytes of images are stored, must be called within a transaction
+    private void deleteLeastRecentlyUsed(long maxBytes) {
 
         long start = System.currentTimeMillis();
 
-        SQLiteStatement statement = db.compileStatement(SQL_INSERT_TILE);
-        statement.clearBindings();
-        statement.bindString(1, tile.getLayer().getMap().getName());
-        statement.bindString(2, tile.getLayer().getName());
-        statement.bindLong(3, tile.getX());
-        statement.bindLong(4, tile.getY());
-        statement.bindLong(5, tile.getLastUsed());
-        if (image == null) {
-            statement.bindNull(6);
+        // the order must include the tiles read recently
+        updateLastUsed();
+
+        int rowsDeleted = 0;
+        long bytesDeleted = 0;
+        long[] keys = new long[EVICT_CHUNK_SIZE];
+        long[] sizes = new long[EVICT_CHUNK_SIZE];
+        long[] imageIds = new long[EVICT_CHUNK_SIZE];
+        boolean[] inTile = new boolean[EVICT_CHUNK_SIZE];
+
+        while (imageByteCount > maxBytes) {
+
+            int count = 0;
+            try (Cursor cursor = db.rawQuery(SQL_GET_LEAST_RECENTLY_USED, null)) {
+                while (cursor.moveToNext()) {
+                    keys[count] = cursor.getLong(0);
+                    sizes[count] = cursor.getLong(1);
+                    imageIds[count] = cursor.isNull(2) ? -1 : cursor.getLong(2);
+                    inTile[count] = cursor.getInt(3) != 0;
+                    count++;
+                }
+            }
+
+            if (count == 0) {
+                break;
+            }
+
+            // an image shared with tiles not deleted yet frees no bytes
+            for (int i = 0; i < count && imageByteCount > maxBytes; i++) {
+                deleteTileStatement.clearBindings();
+                deleteTileStatement.bindLong(1, keys[i]);
+                if (deleteTileStatement.executeUpdateDelete() > 0) {
+                    tileIndex.remove(keys[i]);
+                    addUsage(keys[i] >> TileTable.LAYER_SHIFT, -1, -sizes[i]);
+                    releaseImage(imageIds[i], inTile[i], sizes[i]);
+                    rowsDeleted++;
+                    bytesDeleted += sizes[i];
+                }
+            }
+        }
+
+        // the download jobs hold more than the quota
+        if (imageByteCount > maxBytes) {
+            Log.w(TAG, String.format("Can't delete tiles down to %d bytes, the remaining %d bytes of images are pinned by download jobs and imports", maxBytes, imageByteCount));
+        }
+
+        Log.i(TAG, String.format("Deleted %d rows with %d bytes in %d ms (tileCount=%d, byteCount=%d, imageCount=%d, imageByteCount=%d)", rowsDeleted, bytesDeleted, (System.currentTimeMillis() - start), tileCount, byteCount, imageCount, imageByteCount));
+    }
+
+    private static void bindIdOrNull(SQLiteStatement statement, int index, long id) {
+
+        if (id < 0) {
+            statement.bindNull(index);
         } else {
-            statement.bindBlob(6, image);
+            statement.bindLong(index, id);
+        }
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    // passes the images of the tiles from minX to maxX of row y which are on DB to the consumer, returns their number
+    @Override
+    public int readTileImages(Layer layer, int minX, int maxX, int y, TileImageConsumer consumer) {
+
+        long layerId = findLayerId(layer);
+        if (layerId < 0) {
+            return 0;
         }
-        if (statement.executeInsert() >= 0) {
-            tileCount++;
+
+        String minKey = String.valueOf(TileTable.key(layerId, minX, y));
+        String maxKey = String.valueOf(TileTable.key(layerId, maxX, y));
+
+        int found = 0;
+
+        SQLiteDatabase readConnection = acquireReadConnection();
+        try (Cursor cursor = readConnection.rawQuery(SQL_GET_TILE_IMAGES, new String[]{minKey, maxKey})) {
+            while (cursor.moveToNext()) {
+                byte[] image = cursor.getBlob(2);
+                if (image != null) {
+                    consumer.onTileImage(TileTable.getX(cursor.getLong(0)), y, image);
+                    found++;
+                }
+            }
+        } finally {
+            releaseReadConnection(readConnection);
         }
 
-        Log.i(TAG, String.format("Inserted row in %d ms (tileCount=%d)", (System.currentTimeMillis() - start), tileCount));
+        return found;
     }
 
-    private static final String SQL_DELETE_LEAST_RECENTLY_USED = "DELETE FROM " + TileTable.TABLE_NAME + " WHERE ROWID IN (SELECT ROWID FROM " + TileTable.TABLE_NAME + " ORDER BY " + TileTable.COL_LAST_USED + " ASC LIMIT ?)";
+    private static final String SQL_GET_EXISTING_TILES = "SELECT " + TileTable.COL_KEY + " FROM " + TileTable.TABLE_NAME + " WHERE " + TileTable.COL_KEY + " BETWEEN ? AND ?";
 
-    public synchronized void deleteLeastRecentlyUsed(int numberToDelete) {
+    // returns the keys (x << 32 | y) of all tiles within the given range which are on DB
+    @Override
+    public HashSet<Long> readExistingTiles(Layer layer, int minX, int maxX, int minY, int maxY) {
 
         long start = System.currentTimeMillis();
 
-        SQLiteStatement statement = db.compileStatement(SQL_DELETE_LEAST_RECENTLY_USED);
+        HashSet<Long> existing = new HashSet<>();
+
+        long layerId = findLayerId(layer);
+        if (layerId < 0) {
+            return existing;
+        }
+
+        String minKey = String.valueOf(TileTable.key(layerId, minX, minY));
+        String maxKey = String.valueOf(TileTable.key(layerId, maxX, maxY));
+
+        SQLiteDatabase readConnection = acquireReadConnection();
+        try (Cursor cursor = readConnection.rawQuery(SQL_GET_EXISTING_TILES, new String[]{minKey, maxKey})) {
+            while (cursor.moveToNext()) {
+                long key = cursor.getLong(0);
+                int x = TileTable.getX(key);
+                if (x >= minX && x <= maxX) {
+                    existing.add(((long) x << 32) | TileTable.getY(key));
+                }
+            }
+        } finally {
+            releaseReadConnection(readConnection);
+        }
+
+        Log.i(TAG, String.format("Found %d existing tiles of %s in %d ms", existing.size(), layer.getName(), (System.currentTimeMillis() - start)));
+
+        return existing;
+    }
+
+    // pins the tiles from minX to maxX of row y which are on DB and returns their keys (x << 32 | y)
+    // used by the region downloader, which skips the existing tiles and keeps them from being deleted to make room
+    public synchronized HashSet<Long> pinExistingTiles(Layer layer, int minX, int maxX, int y) {
+
+        HashSet<Long> existing = new HashSet<>();
+
+        long layerId = findLayerId(layer);
+        if (layerId < 0) {
+            return existing;
+        }
+
+        String[] keys = new String[]{String.valueOf(TileTable.key(layerId, minX, y)), String.valueOf(TileTable.key(layerId, maxX, y))};
+
+        db.beginTransaction();
+        try {
+
+            pinTiles(layerId, minX, maxX, y, true);
+
+            try (Cursor cursor = db.rawQuery(SQL_GET_EXISTING_TILES, keys)) {
+                while (cursor.moveToNext()) {
+                    existing.add(((long) TileTable.getX(cursor.getLong(0)) << 32) | y);
+                }
+            }
+
+            db.setTransactionSuccessful();
+
+        } finally {
+            db.endTransaction();
+        }
+
+        return existing;
+    }
+
+    private static final String SQL_INSERT_JOB = "INSERT INTO " + JobTable.TABLE_NAME + " (" + JobTable.COL_MAP_ID + "," + JobTable.COL_MIN_LAYER + "," + JobTable.COL_MAX_LAYER + "," + JobTable.COL_LEFT + "," + JobTable.COL_TOP + "," + JobTable.COL_RIGHT + "," + JobTable.COL_BOTTOM + "," + JobTable.COL_STATE + "," + JobTable.COL_LAYER + "," + JobTable.COL_ROW + "," + JobTable.COL_TILES_TOTAL + "," + JobTable.COL_CREATED + ") VALUES(?,?,?,?,?,?,?,?,?,?,?,?)";
+
+    public synchronized void insertJob(DownloadJob job) {
+
+        SQLiteStatement statement = insertJobStatement;
+        statement.clearBindings();
+        statement.bindString(1, job.getMapName());
+        statement.bindLong(2, job.getMinLayer());
+        statement.bindLong(3, job.getMaxLayer());
+        statement.bindDouble(4, job.getLeft());
+        statement.bindDouble(5, job.getTop());
+        statement.bindDouble(6, job.getRight());
+        statement.bindDouble(7, job.getBottom());
+        statement.bindLong(8, job.getState());
+        statement.bindLong(9, job.getLayer());
+        statement.bindLong(10, job.getRow());
+        statement.bindLong(11, job.getTilesTotal());
+        statement.bindLong(12, job.getCreated());
+        job.setId(statement.executeInsert());
+    }
+
+    private static final String SQL_UPDATE_JOB = "UPDATE " + JobTable.TABLE_NAME + " SET " + JobTable.COL_STATE + "=?," + JobTable.COL_LAYER + "=?," + JobTable.COL_ROW + "=?," + JobTable.COL_TILES_DONE + "=?," + JobTable.COL_TILES_FAILED + "=?," + JobTable.COL_BYTES_DONE + "=? WHERE " + JobTable.COL_ID + " = ?";
+
+    public synchronized void updateJob(DownloadJob job) {
+
+        SQLiteStatement statement = updateJobStatement;
         statement.clearBindings();
-        statement.bindLong(1, numberToDelete);
-        int rowsDeleted = statement.executeUpdateDelete();
-        if (rowsDeleted > 0) {
-            tileCount -= rowsDeleted;
+        statement.bindLong(1, job.getState());
+        statement.bindLong(2, job.getLayer());
+        statement.bindLong(3, job.getRow());
+        statement.bindLong(4, job.getTilesDone());
+        statement.bindLong(5, job.getTilesFailed());
+        statement.bindLong(6, job.getBytesDone());
+        statement.bindLong(7, job.getId());
+        statement.executeUpdateDelete();
+    }
+
+    private static final String SQL_GET_JOBS = "SELECT " + JobTable.COL_ID + "," + JobTable.COL_MAP_ID + "," + JobTable.COL_MIN_LAYER + "," + JobTable.COL_MAX_LAYER + "," + JobTable.COL_LEFT + "," + JobTable.COL_TOP + "," + JobTable.COL_RIGHT + "," + JobTable.COL_BOTTOM + "," + JobTable.COL_STATE + "," + JobTable.COL_LAYER + "," + JobTable.COL_ROW + "," + JobTable.COL_TILES_TOTAL + "," + JobTable.COL_TILES_DONE + "," + JobTable.COL_TILES_FAILED + "," + JobTable.COL_BYTES_DONE + "," + JobTable.COL_CREATED + " FROM " + JobTable.TABLE_NAME + " ORDER BY " + JobTable.COL_ID;
+
+    public synchronized List<DownloadJob> readJobs() {
+
+        ArrayList<DownloadJob> jobs = new ArrayList<>();
+
+        try (Cursor cursor = db.rawQuery(SQL_GET_JOBS, null)) {
+            while (cursor.moveToNext()) {
+                DownloadJob job = new DownloadJob(cursor.getString(1), cursor.getInt(2), cursor.getInt(3), cursor.getFloat(4), cursor.getFloat(5), cursor.getFloat(6), cursor.getFloat(7));
+                job.setId(cursor.getLong(0));
+                job.setState(cursor.getInt(8));
+                job.setCursor(cursor.getInt(9), cursor.getInt(10));
+                job.setTilesTotal(cursor.getInt(11));
+                job.setTilesDone(cursor.getInt(12));
+                job.setTilesFailed(cursor.getInt(13));
+                job.setBytesDone(cursor.getLong(14));
+                job.setCreated(cursor.getLong(15));
+                jobs.add(job);
+            }
+        }
+
+        return jobs;
+    }
+
+    private static final String SQL_DELETE_JOB = "DELETE FROM " + JobTable.TABLE_NAME + " WHERE " + JobTable.COL_ID + " = ?";
+
+    // deletes the job and drops its pins, the tiles within the regions of the remaining jobs of the same map stay pinned
+    // and the pins of imports are kept
+    // the tiles can't be unpinned without the job's map
+    public synchronized void deleteJob(DownloadJob job, Map map, List<DownloadJob> remainingJobs) {
+
+        long start = System.currentTimeMillis();
+
+        boolean successful = false;
+        db.beginTransaction();
+        try {
+
+            deleteJobStatement.clearBindings();
+            deleteJobStatement.bindLong(1, job.getId());
+            deleteJobStatement.executeUpdateDelete();
+
+            if (map != null) {
+                pinTiles(map, job, null, false);
+                for (DownloadJob remainingJob : remainingJobs) {
+                    if (remainingJob.getMapName().equals(job.getMapName())) {
+                        pinTiles(map, job, remainingJob, true);
+                    }
+                }
+            }
+
+            db.setTransactionSuccessful();
+            successful = true;
+
+        } finally {
+            endTransaction(successful);
+        }
+
+        Log.i(TAG, String.format("Deleted job %d in %d ms", job.getId(), (System.currentTimeMillis() - start)));
+    }
+
+    // pins the existing tiles of the job, the jobs stored before version 9 have not pinned theirs while downloading
+    public synchronized void pinTiles(DownloadJob job, Map map) {
+
+        long start = System.currentTimeMillis();
+
+        boolean successful = false;
+        db.beginTransaction();
+        try {
+
+            pinTiles(map, job, null, true);
+
+            db.setTransactionSuccessful();
+            successful = true;
+
+        } finally {
+            endTransaction(successful);
+        }
+
+        Log.i(TAG, String.format("Pinned tiles of job %d in %d ms", job.getId(), (System.currentTimeMillis() - start)));
+    }
+
+    // sets or clears the download job's pin, the pins of imports are kept
+    private static final String SQL_PIN_TILES = "UPDATE " + TileTable.TABLE_NAME + " SET " + TileTable.COL_PINNED + "=(" + TileTable.COL_PINNED + " & ~" + TileTable.PIN_JOB + ") | ? WHERE " + TileTable.COL_KEY + " BETWEEN ? AND ?";
+
+    // pins or unpins the tiles within the job's region or the part of it within the other job's region, one key range per row
+    // must be called within a transaction
+    private void pinTiles(Map map, DownloadJob job, DownloadJob within, boolean pinned) {
+
+        int minLayer = within == null ? job.getMinLayer() : Math.max(job.getMinLayer(), within.getMinLayer());
+        int maxLayer = Math.min(map.getLayerCount() - 1, within == null ? job.getMaxLayer() : Math.min(job.getMaxLayer(), within.getMaxLayer()));
+
+        for (int i = minLayer; i <= maxLayer; i++) {
+
+            Layer layer = map.getLayer(i);
+            long layerId = findLayerId(layer);
+            if (layerId < 0) {
+                continue;
+            }
+
+            int minX = within == null ? job.getMinTileX(layer) : Math.max(job.getMinTileX(layer), within.getMinTileX(layer));
+            int maxX = within == null ? job.getMaxTileX(layer) : Math.min(job.getMaxTileX(layer), within.getMaxTileX(layer));
+            int minY = within == null ? job.getMinTileY(layer) : Math.max(job.getMinTileY(layer), within.getMinTileY(layer));
+            int maxY = within == null ? job.getMaxTileY(layer) : Math.min(job.getMaxTileY(layer), within.getMaxTileY(layer));
+
+            for (int y = minY; y <= maxY && minX <= maxX; y++) {
+                pinTiles(layerId, minX, maxX, y, pinned);
+            }
         }
+    }
+
+    // sets or clears the download job's pin of the tiles from minX to maxX of row y
+    private void pinTiles(long layerId, int minX, int maxX, int y, boolean pinned) {
 
-        Log.i(TAG, String.format("Deleted %d rows in %d ms (tileCount=%d)", rowsDeleted, (System.currentTimeMillis() - start), tileCount));
+        pinTilesStatement.clearBindings();
+        pinTilesStatement.bindLong(1, pinned ? TileTable.PIN_JOB : 0);
+        pinTilesStatement.bindLong(2, TileTable.key(layerId, minX, y));
+        pinTilesStatement.bindLong(3, TileTable.key(layerId, maxX, y));
+        pinTilesStatement.executeUpdateDelete();
     }
 }
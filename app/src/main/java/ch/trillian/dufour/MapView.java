@@ -7,6 +7,8 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
 import android.location.Location;
 import android.util.AttributeSet;
 import android.util.Log;
@@ -19,13 +21,26 @@ public class MapView extends View {
 
     private static final int GPS_OUTDATE_INTERVAL = 10 * 1000;
 
+    // the number of milliseconds without move after which the viewport is considered to stand still
+    private static final int VELOCITY_TIMEOUT = 300;
+
+    // the weight of a new sample in the smoothed velocity
+    private static final float VELOCITY_SMOOTHING = 0.3f;
+
+    // the maximum number of coarser layers searched for a tile to show while loading
+    private static final int MAX_FALLBACK_LEVELS = 3;
+
     public interface ViewListener {
 
         void onSizeChanged(int w, int h, int oldw, int oldh);
 
         Tile onGetTile(Layer layer, int x, int y);
 
-        void preloadRegion(Layer layer, int minTileX, int maxTileX, int minTileY, int maxTileY);
+        Tile onPeekTile(Layer layer, int x, int y);
+
+        void preloadRegion(Layer layer, int minTileX, int maxTileX, int minTileY, int maxTileY, float velocityX, float velocityY);
+
+        void onFrameDrawn();
     }
 
     // view listener (our activity)
@@ -73,6 +88,10 @@ public class MapView extends View {
     private Bitmap tileLoadingBitmap;
     private Bitmap tileLoadFailedBitmap;
 
+    // rectangles for drawing fallback tiles, reused to avoid allocations while drawing
+    private final Rect fallbackSrc = new Rect();
+    private final RectF fallbackDst = new RectF();
+
     // screen size in pixel
     private int screenSizeX;
     private int screenSizeY;
@@ -91,6 +110,11 @@ public class MapView extends View {
     float lastTouchY;
     int activePointerId;
 
+    // the smoothed velocity of the viewport in CH1903 meters per second
+    private float velocityX;
+    private float velocityY;
+    private long lastMoveTime;
+
     // gesture detectors
     ScaleGestureDetector mScaleGestureDetector;
     GestureDetector mGestureDetector;
@@ -210,6 +234,18 @@ public class MapView extends View {
         meterX -= dx * meterPerPixel;
         meterY += dy * meterPerPixel;
 
+        // track velocity for prefetching tiles in the direction of travel
+        long now = System.currentTimeMillis();
+        long dt = now - lastMoveTime;
+        if (dt > 0 && dt < VELOCITY_TIMEOUT) {
+            velocityX += (-dx * meterPerPixel * 1000 / dt - velocityX) * VELOCITY_SMOOTHING;
+            velocityY += (dy * meterPerPixel * 1000 / dt - velocityY) * VELOCITY_SMOOTHING;
+        } else if (dt >= VELOCITY_TIMEOUT) {
+            velocityX = 0;
+            velocityY = 0;
+        }
+        lastMoveTime = now;
+
         // disable gps tracking if we moved too far away from GPS location
         if (gpsLastLocation != null && gpsTracking) {
 
@@ -389,6 +425,10 @@ public class MapView extends View {
         drawInfo(canvas);
 
         drawCross(canvas);
+
+        if (viewListener != null) {
+            viewListener.onFrameDrawn();
+        }
     }
 
     private void drawMap(Canvas canvas, Map map) {
@@ -433,7 +473,7 @@ public class MapView extends View {
                             if (bitmap != null) {
                                 canvas.drawBitmap(bitmap, x, y, mapPaint);
                             }
-                        } else {
+                        } else if (!tile.isLoading() || !drawFallback(canvas, layer, i, j)) {
                             Bitmap bitmap = tile.isLoading() ? tileLoadingBitmap : tileLoadFailedBitmap;
                             canvas.drawBitmap(bitmap, x + (incX - bitmap.getWidth()) / 2, y + (incY - bitmap.getHeight()) / 2, mapPaint);
                         }
@@ -466,6 +506,75 @@ public class MapView extends View {
         canvas.restore();
     }
 
+    // fills a loading tile with the parts of cached tiles of the nearest coarser layer and of the next finer layer
+    private boolean drawFallback(Canvas canvas, Layer layer, int tileX, int tileY) {
+
+        // the tile's bounds in CH1903 coordinates
+        float tileMeterX = layer.getTileSizeX() * layer.getMeterPerPixel();
+        float tileMeterY = layer.getTileSizeY() * layer.getMeterPerPixel();
+        float left = layer.getLeft() + tileX * tileMeterX;
+        float top = layer.getTop() - tileY * tileMeterY;
+        float right = left + tileMeterX;
+        float bottom = top - tileMeterY;
+
+        boolean drawn = false;
+
+        Layer layerOut = layer.getLayerOut();
+        for (int level = 0; level < MAX_FALLBACK_LEVELS && layerOut != null && !drawn; level++) {
+            drawn = drawFallback(canvas, layer, layerOut, left, top, right, bottom);
+            layerOut = layerOut.getLayerOut();
+        }
+
+        Layer layerIn = layer.getLayerIn();
+        if (layerIn != null) {
+            drawn |= drawFallback(canvas, layer, layerIn, left, top, right, bottom);
+        }
+
+        return drawn;
+    }
+
+    // draws the parts of the source layer's cached tiles within the given CH1903 bounds, the canvas is in pixels of the layer
+    private boolean drawFallback(Canvas canvas, Layer layer, Layer source, float left, float top, float right, float bottom) {
+
+        float meterPerPixel = source.getMeterPerPixel();
+        float tileMeterX = source.getTileSizeX() * meterPerPixel;
+        float tileMeterY = source.getTileSizeY() * meterPerPixel;
+
+        // the source tiles intersecting the bounds, not including tiles only touching them
+        int minTileX = (int) Math.floor((left - source.getLeft()) / tileMeterX);
+        int maxTileX = (int) Math.ceil((right - source.getLeft()) / tileMeterX) - 1;
+        int minTileY = (int) Math.floor((source.getTop() - top) / tileMeterY);
+        int maxTileY = (int) Math.ceil((source.getTop() - bottom) / tileMeterY) - 1;
+
+        boolean drawn = false;
+
+        for (int x = minTileX; x <= maxTileX; x++) {
+            for (int y = minTileY; y <= maxTileY; y++) {
+
+                Tile tile = viewListener.onPeekTile(source, x, y);
+                if (tile == null || !tile.isOk() || tile.getBitmap() == null) {
+                    continue;
+                }
+
+                // the intersection of the source tile and the bounds
+                float tileLeft = source.getLeft() + x * tileMeterX;
+                float tileTop = source.getTop() - y * tileMeterY;
+                float clipLeft = Math.max(left, tileLeft);
+                float clipTop = Math.min(top, tileTop);
+                float clipRight = Math.min(right, tileLeft + tileMeterX);
+                float clipBottom = Math.max(bottom, tileTop - tileMeterY);
+
+                fallbackSrc.set(Math.round((clipLeft - tileLeft) / meterPerPixel), Math.round((tileTop - clipTop) / meterPerPixel), Math.round((clipRight - tileLeft) / meterPerPixel), Math.round((tileTop - clipBottom) / meterPerPixel));
+                fallbackDst.set((clipLeft - layer.getLeft()) / layer.getMeterPerPixel(), (layer.getTop() - clipTop) / layer.getMeterPerPixel(), (clipRight - layer.getLeft()) / layer.getMeterPerPixel(), (layer.getTop() - clipBottom) / layer.getMeterPerPixel());
+                canvas.drawBitmap(tile.getBitmap(), fallbackSrc, fallbackDst, mapPaint);
+
+                drawn = true;
+            }
+        }
+
+        return drawn;
+    }
+
     private void drawPoiPosition(Canvas canvas) {
 
         if (poiLocation == null) {
@@ -608,9 +717,10 @@ public class MapView extends View {
             layer.setMinTileY(minTileYnew);
             layer.setMaxTileY(maxTileYnew);
 
-            // preload tiles
+            // preload tiles, ahead of the viewport if it is moving
             if (viewListener != null) {
-                viewListener.preloadRegion(layer, minTileXnew, maxTileXnew, minTileYnew, maxTileYnew);
+                boolean moving = System.currentTimeMillis() - lastMoveTime < VELOCITY_TIMEOUT;
+                viewListener.preloadRegion(layer, minTileXnew, maxTileXnew, minTileYnew, maxTileYnew, moving ? velocityX : 0, moving ? velocityY : 0);
             }
         }
     }
@@ -0,0 +1,491 @@
+package ch.trillian.dufour;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// a read-mostly tile store for offline data: the images are appended to a pack file and found by binary search in a sorted index
+// both files are memory mapped, so reads neither go through SQLite nor take a lock
+public class PackFileTileStore implements TileStore {
+
+    private static final String TAG = "PACK";
+
+    private static final String PACK_FILE = "tiles.pack";
+    private static final String INDEX_FILE = "tiles.idx";
+    private static final String LAYERS_FILE = "layers.txt";
+
+    // an index entry is the tile's key followed by the image's offset and length within the pack file
+    private static final int ENTRY_SIZE = 16;
+    private static final int LENGTH_BITS = 24;
+    private static final long LENGTH_MASK = (1 << LENGTH_BITS) - 1;
+
+    // the pack file is mapped in segments, images never cross a segment's end
+    private static final int SEGMENT_SIZE = 1 << 28;
+
+    private final File directory;
+
+    // the IDs of the layers by map and layer name, the ID is the line within the layers file
+    private final ConcurrentHashMap<String, Long> layerIds = new ConcurrentHashMap<>();
+
+    // the mapped files, replaced as a whole after each commit
+    private volatile Snapshot snapshot;
+
+    // the number of nested beginWrites(), the index is written when the outermost one ends
+    private int writeDepth;
+
+    // the locations of the tiles written but not yet in the index by key
+    private final TreeMap<Long, Long> unindexed = new TreeMap<>();
+
+    // the number of open 'connections'
+    private int openCount = 0;
+
+    // statistics
+    private final AtomicInteger readCount = new AtomicInteger();
+    private final AtomicInteger tilesReadCount = new AtomicInteger();
+    private final AtomicLong readMillis = new AtomicLong();
+
+    private static class Snapshot {
+
+        private final ByteBuffer index;
+        private final int count;
+        private final MappedByteBuffer[] segments;
+
+        private Snapshot(ByteBuffer index, MappedByteBuffer[] segments) {
+
+            this.index = index;
+            this.count = index.capacity() / ENTRY_SIZE;
+            this.segments = segments;
+        }
+
+        private long getKey(int i) {
+
+            return index.getLong(i * ENTRY_SIZE);
+        }
+
+        private long getLocation(int i) {
+
+            return index.getLong(i * ENTRY_SIZE + 8);
+        }
+
+        // returns the entry's index or -(insertion point) - 1 if the key is not in the index
+        private int find(long key) {
+
+            int low = 0;
+            int high = count - 1;
+
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                long midKey = getKey(mid);
+                if (midKey < key) {
+                    low = mid + 1;
+                } else if (midKey > key) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+
+            return -(low + 1);
+        }
+
+        // returns the index of the first entry with a key not less than the given one
+        private int findFirst(long key) {
+
+            int i = find(key);
+
+            return i >= 0 ? i : -(i + 1);
+        }
+
+        // returns the image of the entry without copying it
+        private ByteBuffer getImage(int i) {
+
+            long location = getLocation(i);
+            long offset = location >>> LENGTH_BITS;
+            int length = (int) (location & LENGTH_MASK);
+
+            ByteBuffer image = segments[(int) (offset / SEGMENT_SIZE)].duplicate();
+            int position = (int) (offset % SEGMENT_SIZE);
+            image.limit(position + length);
+            image.position(position);
+
+            return image;
+        }
+    }
+
+    public PackFileTileStore(File directory) {
+
+        this.directory = directory;
+    }
+
+    @Override
+    public synchronized void openDatabase() {
+
+        long start = System.currentTimeMillis();
+
+        if (openCount == 0) {
+            readLayerIds();
+            snapshot = map(null);
+            Log.i(TAG, String.format("Opened %s (tileCount=%d, layers=%d)", directory, snapshot.count, layerIds.size()));
+        }
+
+        openCount++;
+
+        Log.i(TAG, String.format("Opened in %d ms (openCount=%d)", (System.currentTimeMillis() - start), openCount));
+    }
+
+    @Override
+    public synchronized void closeDatabase() {
+
+        openCount--;
+
+        // the mapped buffers are released by the garbage collector
+        if (openCount == 0) {
+            snapshot = null;
+        }
+    }
+
+    @Override
+    public String getStatistics() {
+
+        Snapshot current = snapshot;
+        int reads = readCount.get();
+
+        return String.format("tileCount=%d, reads=%d, tilesRead=%d, readMillis=%d, avgReadMillis=%.1f", current == null ? 0 : current.count, reads, tilesReadCount.get(), readMillis.get(), reads == 0 ? 0f : (float) readMillis.get() / reads);
+    }
+
+    private void readLayerIds() {
+
+        layerIds.clear();
+
+        File file = new File(directory, LAYERS_FILE);
+        if (!file.exists()) {
+            return;
+        }
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                layerIds.put(line, (long) layerIds.size());
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Can't read layers: " + e.getMessage(), e);
+        }
+    }
+
+    private static String layerName(Layer layer) {
+
+        return layer.getMap().getName() + "/" + layer.getName();
+    }
+
+    // returns the layer's ID or -1 if no tile of the layer has ever been written
+    private long findLayerId(Layer layer) {
+
+        Long layerId = layerIds.get(layerName(layer));
+
+        return layerId == null ? -1 : layerId;
+    }
+
+    // returns the layer's ID, a new one is assigned on first use, the caller must hold the monitor
+    private long getLayerId(Layer layer) throws IOException {
+
+        String name = layerName(layer);
+        Long layerId = layerIds.get(name);
+
+        if (layerId == null) {
+            try (FileWriter writer = new FileWriter(new File(directory, LAYERS_FILE), true)) {
+                writer.write(name + "\n");
+            }
+            layerId = (long) layerIds.size();
+            layerIds.put(name, layerId);
+        }
+
+        return layerId;
+    }
+
+    // maps the index and pack files, missing files are mapped as empty
+    // full segments of the previous snapshot are reused, only the last one, which may have grown, and new ones are mapped
+    private Snapshot map(Snapshot previous) {
+
+        ByteBuffer index = ByteBuffer.allocate(0);
+        MappedByteBuffer[] segments = new MappedByteBuffer[0];
+
+        try {
+
+            File indexFile = new File(directory, INDEX_FILE);
+            if (indexFile.exists()) {
+                try (RandomAccessFile file = new RandomAccessFile(indexFile, "r"); FileChannel channel = file.getChannel()) {
+                    index = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                }
+            }
+
+            File packFile = new File(directory, PACK_FILE);
+            if (packFile.exists()) {
+                try (RandomAccessFile file = new RandomAccessFile(packFile, "r"); FileChannel channel = file.getChannel()) {
+                    long size = channel.size();
+                    segments = new MappedByteBuffer[(int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+                    for (int i = 0; i < segments.length; i++) {
+                        if (previous != null && i < previous.segments.length && previous.segments[i].capacity() == SEGMENT_SIZE) {
+                            segments[i] = previous.segments[i];
+                            continue;
+                        }
+                        long position = (long) i * SEGMENT_SIZE;
+                        segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(SEGMENT_SIZE, size - position));
+                    }
+                }
+            }
+
+        } catch (IOException e) {
+            Log.w(TAG, "Can't map " + directory + ": " + e.getMessage(), e);
+            return new Snapshot(ByteBuffer.allocate(0), new MappedByteBuffer[0]);
+        }
+
+        return new Snapshot(index, segments);
+    }
+
+    @Override
+    public int readTiles(Layer layer, List<Tile> tiles, TileConsumer consumer) {
+
+        long start = System.currentTimeMillis();
+
+        Snapshot current = snapshot;
+        long layerId = findLayerId(layer);
+        if (current == null || layerId < 0) {
+            return 0;
+        }
+
+        int found = 0;
+        long now = System.currentTimeMillis();
+
+        for (Tile tile : tiles) {
+
+            int i = current.find(TileTable.key(layerId, tile.getX(), tile.getY()));
+            if (i < 0) {
+                continue;
+            }
+
+            // pack files are replaced as a whole, their tiles are not revalidated
+            tile.setLastUsed(now);
+            tile.setFetchedAt(now);
+            tile.setEtag(null);
+            tile.setLastModified(null);
+            tile.setOK();
+            tile.setBitmap(null);
+
+            // the slice of the mapped pack file, not copied before decoding
+            ByteBuffer image = current.getImage(i);
+            consumer.onTile(tile, image.hasRemaining() ? image : null);
+
+            found++;
+        }
+
+        long millis = System.currentTimeMillis() - start;
+        readCount.incrementAndGet();
+        tilesReadCount.addAndGet(found);
+        readMillis.addAndGet(millis);
+
+        Log.i(TAG, String.format("Read %d of %d tiles in %d ms", found, tiles.size(), millis));
+
+        return found;
+    }
+
+    @Override
+    public HashSet<Long> readExistingTiles(Layer layer, int minX, int maxX, int minY, int maxY) {
+
+        HashSet<Long> existing = new HashSet<>();
+
+        Snapshot current = snapshot;
+        long layerId = findLayerId(layer);
+        if (current == null || layerId < 0) {
+            return existing;
+        }
+
+        long maxKey = TileTable.key(layerId, maxX, maxY);
+        for (int i = current.findFirst(TileTable.key(layerId, minX, minY)); i < current.count && current.getKey(i) <= maxKey; i++) {
+            int x = TileTable.getX(current.getKey(i));
+            if (x >= minX && x <= maxX) {
+                existing.add(((long) x << 32) | TileTable.getY(current.getKey(i)));
+            }
+        }
+
+        return existing;
+    }
+
+    @Override
+    public int readTileImages(Layer layer, int minX, int maxX, int y, TileImageConsumer consumer) {
+
+        Snapshot current = snapshot;
+        long layerId = findLayerId(layer);
+        if (current == null || layerId < 0) {
+            return 0;
+        }
+
+        int found = 0;
+
+        long maxKey = TileTable.key(layerId, maxX, y);
+        for (int i = current.findFirst(TileTable.key(layerId, minX, y)); i < current.count && current.getKey(i) <= maxKey; i++) {
+            ByteBuffer buffer = current.getImage(i);
+            if (buffer.hasRemaining()) {
+                byte[] image = new byte[buffer.remaining()];
+                buffer.get(image);
+                consumer.onTileImage(TileTable.getX(current.getKey(i)), y, image);
+                found++;
+            }
+        }
+
+        return found;
+    }
+
+    @Override
+    public synchronized void beginWrites() {
+
+        writeDepth++;
+    }
+
+    @Override
+    public synchronized void endWrites() {
+
+        if (writeDepth > 0 && --writeDepth == 0) {
+            commit();
+        }
+    }
+
+    // appends the images to the pack file, replaced images stay in the pack file unused
+    // outside of beginWrites() and endWrites() the index is written with each call, so large imports should use them
+    @Override
+    public synchronized void writeTiles(List<TileWriter.PendingWrite> writes) {
+
+        long start = System.currentTimeMillis();
+
+        int count = 0;
+
+        try (RandomAccessFile pack = new RandomAccessFile(new File(directory, PACK_FILE), "rw")) {
+
+            long offset = pack.length();
+
+            for (TileWriter.PendingWrite write : writes) {
+
+                // the validators are not stored
+                if (!write.isImageWrite()) {
+                    continue;
+                }
+
+                byte[] image = write.getImage();
+                int length = image == null ? 0 : image.length;
+                if (length > LENGTH_MASK) {
+                    Log.w(TAG, "Image too large: " + write.getTile());
+                    continue;
+                }
+
+                // start a new segment if the image doesn't fit into the current one
+                if (offset % SEGMENT_SIZE + length > SEGMENT_SIZE) {
+                    offset = (offset / SEGMENT_SIZE + 1) * SEGMENT_SIZE;
+                }
+
+                if (length > 0) {
+                    pack.seek(offset);
+                    pack.write(image);
+                }
+
+                Tile tile = write.getTile();
+                unindexed.put(TileTable.key(getLayerId(tile.getLayer()), tile.getX(), tile.getY()), (offset << LENGTH_BITS) | length);
+                offset += length;
+                count++;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Can't write tiles: " + e.getMessage(), e);
+        }
+
+        Log.i(TAG, String.format("Wrote %d tiles in %d ms (unindexed=%d)", count, (System.currentTimeMillis() - start), unindexed.size()));
+
+        if (writeDepth == 0) {
+            commit();
+        }
+    }
+
+    // writes the index of the tiles written so far and maps it, the pack file is synced first so the index never
+    // refers to bytes which are not on disk
+    private void commit() {
+
+        if (unindexed.isEmpty()) {
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+
+        try {
+
+            try (RandomAccessFile pack = new RandomAccessFile(new File(directory, PACK_FILE), "rw")) {
+                pack.getFD().sync();
+            }
+
+            writeIndex(unindexed);
+
+        } catch (IOException e) {
+            Log.w(TAG, "Can't write index: " + e.getMessage(), e);
+        }
+
+        // the tiles are dropped if the index can't be written, their images stay in the pack file unused
+        unindexed.clear();
+        snapshot = map(snapshot);
+
+        Log.i(TAG, String.format("Committed in %d ms (tileCount=%d)", (System.currentTimeMillis() - start), snapshot.count));
+    }
+
+    // merges the written entries into the current index and replaces the index file
+    private void writeIndex(TreeMap<Long, Long> written) throws IOException {
+
+        Snapshot current = snapshot != null ? snapshot : map(null);
+
+        File indexFile = new File(directory, INDEX_FILE);
+        File tempFile = new File(directory, INDEX_FILE + ".tmp");
+
+        FileOutputStream fileOut = new FileOutputStream(tempFile);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+
+            int i = 0;
+            for (java.util.Map.Entry<Long, Long> entry : written.entrySet()) {
+
+                // the old entries before the written one, a replaced entry is skipped
+                while (i < current.count && current.getKey(i) <= entry.getKey()) {
+                    if (current.getKey(i) < entry.getKey()) {
+                        out.writeLong(current.getKey(i));
+                        out.writeLong(current.getLocation(i));
+                    }
+                    i++;
+                }
+
+                out.writeLong(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+
+            for (; i < current.count; i++) {
+                out.writeLong(current.getKey(i));
+                out.writeLong(current.getLocation(i));
+            }
+
+            out.flush();
+            fileOut.getFD().sync();
+        }
+
+        if (!tempFile.renameTo(indexFile)) {
+            throw new IOException("Can't rename " + tempFile);
+        }
+    }
+}
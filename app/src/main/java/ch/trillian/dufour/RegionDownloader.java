@@ -0,0 +1,424 @@
+package ch.trillian.dufour;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+// downloads regions of a map for offline use, one job after the other
+// the progress is persisted after each row of tiles, so jobs resume after the process has been killed
+public class RegionDownloader implements Runnable {
+
+    private static final String TAG = "REGION";
+
+    // the default maximum number of tiles downloaded per second
+    public static final float DEFAULT_TILES_PER_SECOND = 4;
+
+    // the minimum number of milliseconds between two progress reports
+    private static final int PROGRESS_INTERVAL = 1000;
+
+    private final Map[] maps;
+    private final TileHttpClient httpClient;
+
+    // the handler for reporting progress on the UI thread
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    private JobListener jobListener;
+
+    private boolean pause;
+    private boolean destroy;
+    private Thread thread;
+
+    // all jobs known, finished jobs are kept until deleted
+    private final ArrayList<DownloadJob> jobs = new ArrayList<>();
+
+    // the jobs to be added to or deleted from DB by the download thread
+    private final ArrayList<DownloadJob> jobsToInsert = new ArrayList<>();
+    private final ArrayList<DownloadJob> jobsToDelete = new ArrayList<>();
+
+    // the minimum number of milliseconds between two downloads
+    private volatile long downloadInterval = (long) (1000 / DEFAULT_TILES_PER_SECOND);
+
+    public interface JobListener {
+
+        void onJobProgress(long jobId, int tilesDone, int tilesTotal, long bytesDone, long etaMillis);
+
+        void onJobFinished(long jobId, int state);
+    }
+
+    public RegionDownloader(Map[] maps, TileHttpClient httpClient) {
+
+        this.maps = maps;
+        this.httpClient = httpClient;
+
+        thread = new Thread(this, "RegionDownloadThread");
+        thread.start();
+    }
+
+    public void setJobListener(JobListener jobListener) {
+
+        this.jobListener = jobListener;
+    }
+
+    public void setTilesPerSecond(float tilesPerSecond) {
+
+        downloadInterval = (long) (1000 / tilesPerSecond);
+    }
+
+    public void onPause() {
+
+        synchronized (this) {
+            pause = true;
+        }
+    }
+
+    public void onResume() {
+
+        synchronized (this) {
+            pause = false;
+            this.notify();
+        }
+    }
+
+    public void onDestroy() {
+
+        synchronized (this) {
+            destroy = true;
+            this.notify();
+        }
+    }
+
+    // orders the download of the layers from minLayer to maxLayer of the map within the given CH1903 bounding box
+    public DownloadJob orderDownload(Map map, int minLayer, int maxLayer, float left, float top, float right, float bottom) {
+
+        DownloadJob job = new DownloadJob(map.getName(), Math.max(0, minLayer), Math.min(map.getLayerCount() - 1, maxLayer), left, top, right, bottom);
+        job.setCreated(System.currentTimeMillis());
+
+        int tilesTotal = 0;
+        for (int i = job.getMinLayer(); i <= job.getMaxLayer(); i++) {
+            tilesTotal += job.getTileCount(map.getLayer(i));
+        }
+        job.setTilesTotal(tilesTotal);
+
+        synchronized (this) {
+            jobs.add(job);
+            jobsToInsert.add(job);
+            this.notify();
+        }
+
+        Log.i(TAG, "Ordered: " + job);
+
+        return job;
+    }
+
+    // cancels the job, it is deleted from DB as soon as the current download has finished
+    public void cancelDownload(DownloadJob job) {
+
+        synchronized (this) {
+            if (!job.isFinished()) {
+                job.setState(DownloadJob.STATE_CANCELLED);
+            }
+            jobs.remove(job);
+            jobsToDelete.add(job);
+            this.notify();
+        }
+    }
+
+    public List<DownloadJob> getJobs() {
+
+        synchronized (this) {
+            return new ArrayList<>(jobs);
+        }
+    }
+
+    public void run() {
+
+        Log.i(TAG, "RegionDownloadThread started.");
+
+        MapDatabase database = MapDatabase.getInstance();
+
+        try {
+
+            database.openDatabase();
+
+            // resume the jobs of the previous run
+            List<DownloadJob> storedJobs = database.readJobs();
+            synchronized (this) {
+                jobs.addAll(0, storedJobs);
+            }
+
+            // the jobs stored before version 9 have not pinned their tiles
+            for (DownloadJob job : storedJobs) {
+                Map map = getMap(job.getMapName());
+                if (map != null) {
+                    database.pinTiles(job, map);
+                }
+            }
+
+            while (true) {
+
+                DownloadJob job;
+                ArrayList<DownloadJob> inserts;
+                ArrayList<DownloadJob> deletes;
+                ArrayList<DownloadJob> remaining;
+
+                // take the ordered and cancelled jobs under the lock, they are written to DB outside of it
+                synchronized (this) {
+
+                    if (destroy) {
+                        break;
+                    }
+
+                    inserts = new ArrayList<>(jobsToInsert);
+                    jobsToInsert.clear();
+                    deletes = new ArrayList<>(jobsToDelete);
+                    jobsToDelete.clear();
+                    remaining = deletes.isEmpty() ? null : new ArrayList<>(jobs);
+                    job = pause ? null : getNextJob();
+
+                    if (job == null && inserts.isEmpty() && deletes.isEmpty()) {
+                        this.wait();
+                        continue;
+                    }
+                }
+
+                updateJobs(database, inserts, deletes, remaining);
+
+                if (job != null) {
+                    downloadJob(database, job);
+                }
+            }
+
+        } catch (InterruptedException e) {
+            Log.w(TAG, "RegionDownloadThread has been interrupted.");
+        }
+
+        database.closeDatabase();
+
+        Log.i(TAG, "RegionDownloadThread has been shut down.");
+    }
+
+    // writes ordered and cancelled jobs to DB, a job ordered and cancelled at once is inserted before being deleted
+    // the tiles of a deleted job stay pinned where they are within the region of a remaining job
+    private void updateJobs(MapDatabase database, List<DownloadJob> inserts, List<DownloadJob> deletes, List<DownloadJob> remaining) {
+
+        for (DownloadJob job : inserts) {
+            database.insertJob(job);
+        }
+
+        for (DownloadJob job : deletes) {
+            if (job.getId() != 0) {
+                database.deleteJob(job, getMap(job.getMapName()), remaining);
+            }
+        }
+    }
+
+    // returns the next job to download or null if there is none, called with the lock held
+    private DownloadJob getNextJob() {
+
+        for (DownloadJob job : jobs) {
+            if (!job.isFinished()) {
+                return job;
+            }
+        }
+
+        return null;
+    }
+
+    private Map getMap(String name) {
+
+        for (Map map : maps) {
+            if (map.getName().equals(name)) {
+                return map;
+            }
+        }
+
+        return null;
+    }
+
+    private void downloadJob(MapDatabase database, DownloadJob job) throws InterruptedException {
+
+        Map map = getMap(job.getMapName());
+        if (map == null || job.getMaxLayer() >= map.getLayerCount()) {
+            Log.w(TAG, "Unknown map or layer: " + job);
+            finishJob(database, job, DownloadJob.STATE_CANCELLED);
+            return;
+        }
+
+        Log.i(TAG, "Downloading: " + job);
+
+        long start = System.currentTimeMillis();
+        int startTilesDone = job.getTilesDone();
+        long lastProgress = 0;
+        long lastDownload = 0;
+
+        synchronized (this) {
+            if (job.isFinished()) {
+                return;
+            }
+            job.setState(DownloadJob.STATE_RUNNING);
+        }
+
+        for (int layerIndex = job.getLayer(); layerIndex <= job.getMaxLayer(); layerIndex++) {
+
+            Layer layer = map.getLayer(layerIndex);
+            int minX = job.getMinTileX(layer);
+            int maxX = job.getMaxTileX(layer);
+            int minY = job.getMinTileY(layer);
+            int maxY = job.getMaxTileY(layer);
+
+            for (int y = layerIndex == job.getLayer() && job.getRow() >= 0 ? job.getRow() : minY; y <= maxY; y++) {
+
+                // skip tiles already on DB with one query per row, they are pinned like the downloaded ones
+                HashSet<Long> existing = database.pinExistingTiles(layer, minX, maxX, y);
+
+                ArrayList<TileWriter.PendingWrite> writes = new ArrayList<>();
+                int rowTilesDone = job.getTilesDone();
+                int rowTilesFailed = job.getTilesFailed();
+
+                for (int x = minX; x <= maxX; x++) {
+
+                    if (existing.contains(((long) x << 32) | y)) {
+                        job.setTilesDone(job.getTilesDone() + 1);
+                        continue;
+                    }
+
+                    // keep the download rate and stop on pause, cancel or destroy
+                    boolean stop;
+                    boolean running;
+                    synchronized (this) {
+                        long delay;
+                        while (!pause && !destroy && job.getState() == DownloadJob.STATE_RUNNING && (delay = lastDownload + downloadInterval - System.currentTimeMillis()) > 0) {
+                            this.wait(delay);
+                        }
+                        running = job.getState() == DownloadJob.STATE_RUNNING;
+                        stop = pause || destroy || !running;
+                    }
+
+                    if (stop) {
+
+                        // restart the row on resume, the tiles downloaded so far are skipped then
+                        job.setTilesDone(rowTilesDone);
+                        job.setTilesFailed(rowTilesFailed);
+                        job.setCursor(layerIndex, y);
+                        if (running) {
+                            database.writeTiles(writes, job);
+                        } else {
+                            database.writeTiles(writes);
+                        }
+                        Log.i(TAG, "Stopped: " + job);
+                        return;
+                    }
+
+                    lastDownload = System.currentTimeMillis();
+
+                    Tile tile = new Tile(layer, x, y);
+                    if (!downloadTile(tile, job, writes)) {
+                        job.setTilesFailed(job.getTilesFailed() + 1);
+                    }
+                    job.setTilesDone(job.getTilesDone() + 1);
+
+                    if (lastDownload - lastProgress > PROGRESS_INTERVAL) {
+                        lastProgress = lastDownload;
+                        reportProgress(job, start, startTilesDone);
+                    }
+                }
+
+                // write the row's tiles together with the job's progress
+                job.setCursor(layerIndex, y + 1);
+                database.writeTiles(writes, job);
+            }
+
+            job.setCursor(layerIndex + 1, -1);
+        }
+
+        reportProgress(job, start, startTilesDone);
+        finishJob(database, job, DownloadJob.STATE_DONE);
+
+        Log.i(TAG, String.format("Downloaded %s in %d ms", job, (System.currentTimeMillis() - start)));
+    }
+
+    // adds the downloaded tile to the writes and returns false if the download failed
+    // a tile without content is written without image like the loader does, so it is not downloaded again
+    private boolean downloadTile(Tile tile, DownloadJob job, ArrayList<TileWriter.PendingWrite> writes) {
+
+        try {
+
+            TileHttpClient.Response response = httpClient.get(tile.getLayer().getUrl(tile));
+            boolean ok = response.getCode() == HttpURLConnection.HTTP_OK && response.getBody() != null;
+            if (ok || response.getCode() == HttpURLConnection.HTTP_NO_CONTENT) {
+
+                long now = System.currentTimeMillis();
+                tile.setLastUsed(now);
+                tile.setFetchedAt(now);
+                tile.setEtag(response.getEtag());
+                tile.setLastModified(response.getLastModified());
+                tile.setOK();
+
+                byte[] image = ok ? response.getBody() : null;
+                if (image != null) {
+                    job.setBytesDone(job.getBytesDone() + image.length);
+                }
+                writes.add(new TileWriter.PendingWrite(tile, image, true, TileTable.PIN_JOB));
+
+                return true;
+            }
+
+            Log.w(TAG, "Download failed with " + response.getCode() + ": " + tile);
+
+        } catch (Exception e) {
+            Log.w(TAG, "Exception: " + e.getMessage(), e);
+        }
+
+        return false;
+    }
+
+    private void finishJob(MapDatabase database, DownloadJob job, int state) {
+
+        synchronized (this) {
+            if (!job.isFinished()) {
+                job.setState(state);
+            }
+        }
+
+        database.updateJob(job);
+
+        final long jobId = job.getId();
+        final int finalState = job.getState();
+        handler.post(new Runnable() {
+
+            @Override
+            public void run() {
+                if (jobListener != null) {
+                    jobListener.onJobFinished(jobId, finalState);
+                }
+            }
+        });
+    }
+
+    private void reportProgress(DownloadJob job, long start, int startTilesDone) {
+
+        final long jobId = job.getId();
+        final int tilesDone = job.getTilesDone();
+        final int tilesTotal = job.getTilesTotal();
+        final long bytesDone = job.getBytesDone();
+
+        // estimate the remaining time from the tiles done since this job has been (re)started
+        int tilesDoneNow = tilesDone - startTilesDone;
+        final long etaMillis = tilesDoneNow > 0 ? (System.currentTimeMillis() - start) * (tilesTotal - tilesDone) / tilesDoneNow : -1;
+
+        handler.post(new Runnable() {
+
+            @Override
+            public void run() {
+                if (jobListener != null) {
+                    jobListener.onJobProgress(jobId, tilesDone, tilesTotal, bytesDone, etaMillis);
+                }
+            }
+        });
+    }
+}
@@ -14,6 +14,11 @@ public class Tile {
     private Bitmap bitmap;
     private long lastUsed;
 
+    // HTTP validators used for revalidating the cached tile
+    private String etag;
+    private String lastModified;
+    private long fetchedAt;
+
     public Tile(Layer layer, int x, int y) {
 
         this.layer = layer;
@@ -21,6 +26,29 @@ public class Tile {
         this.y = y;
     }
 
+    // packs map, layer and coordinates into one key
+    public static long key(Layer layer, int x, int y) {
+
+        return ((long) layer.getMap().getIndex() << 56) | ((long) layer.getIndex() << 48) | ((long) x << 24) | (long) y;
+    }
+
+    public long getKey() {
+
+        return key(layer, x, y);
+    }
+
+    // takes over the result of a load done by another tile
+    public void assign(Tile source) {
+
+        bitmap = source.bitmap;
+        lastUsed = source.lastUsed;
+        etag = source.etag;
+        lastModified = source.lastModified;
+        fetchedAt = source.fetchedAt;
+        loading = source.loading;
+        ok = source.ok;
+    }
+
     @SuppressLint("DefaultLocale")
     public String toString() {
 
@@ -69,6 +97,30 @@ public class Tile {
         this.lastUsed = lastUsed;
     }
 
+    public String getEtag() {
+        return etag;
+    }
+
+    public void setEtag(String etag) {
+        this.etag = etag;
+    }
+
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    public void setLastModified(String lastModified) {
+        this.lastModified = lastModified;
+    }
+
+    public long getFetchedAt() {
+        return fetchedAt;
+    }
+
+    public void setFetchedAt(long fetchedAt) {
+        this.fetchedAt = fetchedAt;
+    }
+
     public boolean isOk() {
         return ok;
     }
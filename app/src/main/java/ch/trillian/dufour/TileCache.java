@@ -1,147 +1,413 @@
 package ch.trillian.dufour;
 
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
 import android.util.Log;
+import android.util.LruCache;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+
+// the tiles of all maps and layers in one LRU cache with a memory budget
 public class TileCache {
 
     private static final String TAG = "CACHE";
 
     public final static int PRELOAD_SIZE = 1;
 
-    private Map map;
-    private Tile[][][] cache;
+    // the maximum number of additional tiles preloaded in the direction of travel
+    public final static int MAX_LOOKAHEAD = 4;
+
+    // the part of the app's memory class used for tiles
+    private static final int MEMORY_FRACTION = 4;
+
+    // the factor by which the cache may exceed its budget while more tiles are visible, preloaded and drawn as fallback
+    private static final int MAX_GROWTH = 2;
+
+    // the memory budget, the cache only exceeds it while the current regions need more
+    private final int maxBytes;
+
+    private final LruCache<Long, Tile> tiles;
     private CacheListener cacheListener;
 
+    // the last preloaded region of each map
+    private final HashMap<Map, Region> regions = new HashMap<>();
+
+    // the tiles ordered by this cache, their loads may have finished in the meantime
+    private final HashMap<Long, Tile> orderedTiles = new HashMap<>();
+
+    // statistics of getTile, not including peeks
+    private int hitCount;
+    private int missCount;
+
+    // the number of bytes the resident tiles save by their layer's bitmap config
+    private long savedBytes;
+
+    // the bitmaps of removed tiles, which the current frame may have drawn, and the ones removed before the previous frame
+    // the latter are no longer drawn and are released for reuse at the end of the current frame
+    private final ArrayList<Bitmap> removedBitmaps = new ArrayList<>();
+    private final ArrayList<Bitmap> releasableBitmaps = new ArrayList<>();
+
+    // the visible and the preloaded tiles of a layer
+    private static class Region {
+
+        private final Layer layer;
+        private final int minTileX;
+        private final int maxTileX;
+        private final int minTileY;
+        private final int maxTileY;
+        private final int minPreloadX;
+        private final int maxPreloadX;
+        private final int minPreloadY;
+        private final int maxPreloadY;
+
+        private Region(Layer layer, int minTileX, int maxTileX, int minTileY, int maxTileY, int minPreloadX, int maxPreloadX, int minPreloadY, int maxPreloadY) {
+
+            this.layer = layer;
+            this.minTileX = minTileX;
+            this.maxTileX = maxTileX;
+            this.minTileY = minTileY;
+            this.maxTileY = maxTileY;
+            this.minPreloadX = minPreloadX;
+            this.maxPreloadX = maxPreloadX;
+            this.minPreloadY = minPreloadY;
+            this.maxPreloadY = maxPreloadY;
+        }
+
+        private boolean isVisible(Layer layer, int x, int y) {
+
+            return layer == this.layer && x >= minTileX && x <= maxTileX && y >= minTileY && y <= maxTileY;
+        }
+
+        private boolean isPreloaded(Layer layer, int x, int y) {
+
+            return layer == this.layer && x >= minPreloadX && x <= maxPreloadX && y >= minPreloadY && y <= maxPreloadY;
+        }
+    }
+
     public interface CacheListener {
 
         void onOrderLoadTile(Tile tile, int priority);
 
         void onCancelLoadTile(Tile tile);
+
+        void onFocusChanged(float ch1903X, float ch1903Y);
+
+        long getLoadLatency();
     }
 
-    public TileCache(Map map, int preloadSize, int screenSizeX, int screenSizeY) {
+    public TileCache(int maxBytes) {
 
-        this.map = map;
+        this.maxBytes = maxBytes;
 
-        // create array of layers
-        cache = new Tile[map.getLayerCount()][][];
+        tiles = new LruCache<Long, Tile>(maxBytes) {
 
-        for (int layerIndex = 0; layerIndex < map.getLayerCount(); layerIndex++) {
+            @Override
+            protected int sizeOf(Long key, Tile tile) {
 
-            Layer layer = map.getLayer(layerIndex);
-            int cacheSizeX = (int) ((1f / layer.getMinScale()) * screenSizeX / layer.getTileSizeX()) + 2 * preloadSize + 2;
-            int cacheSizeY = (int) ((1f / layer.getMinScale()) * screenSizeY / layer.getTileSizeY()) + 2 * preloadSize + 2;
+                return getByteCount(tile.getLayer());
+            }
 
-            cacheSizeX = Math.min(cacheSizeX, layer.getSizeX());
-            cacheSizeY = Math.min(cacheSizeY, layer.getSizeY());
+            @Override
+            protected void entryRemoved(boolean evicted, Long key, Tile oldTile, Tile newTile) {
 
-            // create array of columns
-            cache[layerIndex] = new Tile[cacheSizeY][];
+                // also while being revalidated, so the loader won't hand out the bitmap again
+                if (evicted) {
+                    cancelLoad(oldTile);
+                }
 
-            // create arrays of rows
-            for (int y = 0; y < cacheSizeY; y++) {
-                cache[layerIndex][y] = new Tile[cacheSizeX];
+                if (orderedTiles.get(key) == oldTile) {
+                    orderedTiles.remove(key);
+                }
+
+                savedBytes -= getSavedByteCount(oldTile.getLayer());
+
+                // reuse the bitmap for decoding other tiles once no frame draws it any more
+                if (oldTile.getBitmap() != null) {
+                    removedBitmaps.add(oldTile.getBitmap());
+                    oldTile.setBitmap(null);
+                }
             }
+        };
 
-            Log.w("TRILLIAN", "Created cache: mapName=" + map.getName() + ", layerName=" + layer.getName() + ", cacheSizeX=" + cacheSizeX + ", cacheSizeY=" + cacheSizeY);
-        }
+        Log.w("TRILLIAN", "Created cache: maxBytes=" + maxBytes);
     }
 
-    public void setCacheListener(CacheListener cacheListener) {
+    // returns the number of bytes to use for tiles according to the app's memory class
+    public static int getMemoryBudget(Context context) {
 
-        this.cacheListener = cacheListener;
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+
+        return activityManager.getMemoryClass() * 1024 * 1024 / MEMORY_FRACTION;
     }
 
-    public Tile getTile(Layer layer, int x, int y, int priority) {
+    // the number of bytes a tile of the given layer occupies, loading or not, as the size of an entry must not change
+    private static int getByteCount(Layer layer) {
 
-        if (this.map != layer.getMap()) {
-            return null;
-        }
+        return layer.getTileByteCount();
+    }
 
-        int layerIndex = layer.getIndex();
+    // the number of bytes a tile of the given layer saves compared to ARGB_8888
+    private static int getSavedByteCount(Layer layer) {
 
-        if (!map.getLayer(layerIndex).hasTile(x, y)) {
-            return null;
+        return layer.getTileSizeX() * layer.getTileSizeY() * 4 - layer.getTileByteCount();
+    }
+
+    // called at the end of each frame, tiles may be removed while drawing and the frame is rendered after onDraw() has returned
+    public void onFrameDrawn() {
+
+        for (Bitmap bitmap : releasableBitmaps) {
+            TileDecoder.release(bitmap);
         }
+        releasableBitmaps.clear();
+
+        releasableBitmaps.addAll(removedBitmaps);
+        removedBitmaps.clear();
+    }
 
-        int cacheSizeX = cache[layerIndex][0].length;
-        int cacheSizeY = cache[layerIndex].length;
+    // called when a tile gets a new bitmap, the current frame may still draw the former one
+    public void releaseBitmap(Bitmap bitmap) {
 
-        int cacheIndexX = x % cacheSizeX;
-        int cacheIndexY = y % cacheSizeY;
+        removedBitmaps.add(bitmap);
+    }
 
-        Tile tile = cache[layerIndex][cacheIndexY][cacheIndexX];
+    public void setCacheListener(CacheListener cacheListener) {
 
-        // check if current cached item matches the requested one
-        if (tile != null) {
-            if (tile.getX() != x || tile.getY() != y) {
-                if (tile.isLoading()) {
-                    cancelLoad(tile);
-                }
-                tile = null;
-            }
+        this.cacheListener = cacheListener;
+    }
+
+    public Tile getTile(Layer layer, int x, int y, int priority) {
+
+        if (!layer.hasTile(x, y)) {
+            return null;
         }
 
+        long key = Tile.key(layer, x, y);
+        Tile tile = tiles.get(key);
+
         // order new tile if none exists
-        if (tile == null) {
+        if (tile != null) {
+            hitCount++;
+        } else {
+            missCount++;
             tile = new Tile(layer, x, y);
             tile.setLoading();
-            cache[layerIndex][cacheIndexY][cacheIndexX] = tile;
+            savedBytes += getSavedByteCount(layer);
+            tiles.put(key, tile);
+            orderedTiles.put(key, tile);
             orderLoad(tile, priority);
         }
 
         return tile;
     }
 
-    public void preloadRegion(Layer layer, int minTileX, int maxTileX, int minTileY, int maxTileY) {
+    // returns the cached tile without ordering it if it isn't cached
+    public Tile peekTile(Layer layer, int x, int y) {
+
+        if (!layer.hasTile(x, y)) {
+            return null;
+        }
+
+        return tiles.get(Tile.key(layer, x, y));
+    }
+
+    // the current size limit of the cache, at least the budget
+    public int getMaxBytes() {
 
-        Log.i(TAG, String.format("Preloading layer=%s, minTileX=%d, maxTileX=%d, minTileY=%d, maxTileY=%d ", layer.getName(), minTileX, maxTileX, minTileY, maxTileY));
+        return tiles.maxSize();
+    }
 
-        int layerIndex = layer.getIndex();
+    public int getHitCount() {
 
-        // cancel load for all other layers or for tiles that don't fit the region of the current layer
-        for (int l = cache.length - 1; l >= 0; l--) {
-            for (int y = cache[l].length - 1; y >= 0; y--) {
-                for (int x = cache[l][y].length - 1; x >= 0; x--) {
+        return hitCount;
+    }
 
-                    Tile tile = cache[l][y][x];
+    public int getMissCount() {
 
-                    if (tile == null) {
+        return missCount;
+    }
+
+    public int getEvictionCount() {
+
+        return tiles.evictionCount();
+    }
+
+    public String getStatistics() {
+
+        return String.format("size=%d, maxSize=%d, hits=%d, misses=%d, evictions=%d, savedBytes=%d", tiles.size(), tiles.maxSize(), getHitCount(), getMissCount(), getEvictionCount(), savedBytes);
+    }
+
+    public void preloadRegion(Layer layer, int minTileX, int maxTileX, int minTileY, int maxTileY, float velocityX, float velocityY) {
+
+        // the velocity in tiles per second and the number of tiles passed while loading one tile
+        float latency = (cacheListener != null ? cacheListener.getLoadLatency() : 0) / 1000f;
+        float tileVelocityX = velocityX / (layer.getTileSizeX() * layer.getMeterPerPixel());
+        float tileVelocityY = -velocityY / (layer.getTileSizeY() * layer.getMeterPerPixel());
+        int lookaheadX = Math.min(MAX_LOOKAHEAD, (int) Math.ceil(Math.abs(tileVelocityX) * latency));
+        int lookaheadY = Math.min(MAX_LOOKAHEAD, (int) Math.ceil(Math.abs(tileVelocityY) * latency));
+
+        // extend the preload region ahead of the motion and drop it behind
+        int[] preloadX = getPreloadSizes(tileVelocityX, lookaheadX);
+        int[] preloadY = getPreloadSizes(tileVelocityY, lookaheadY);
+        int minPreloadX = minTileX - preloadX[0];
+        int maxPreloadX = maxTileX + preloadX[1];
+        int minPreloadY = minTileY - preloadY[0];
+        int maxPreloadY = maxTileY + preloadY[1];
+
+        Log.i(TAG, String.format("Preloading layer=%s, minTileX=%d, maxTileX=%d, minTileY=%d, maxTileY=%d, preloadX=%d/%d, preloadY=%d/%d", layer.getName(), minTileX, maxTileX, minTileY, maxTileY, preloadX[0], preloadX[1], preloadY[0], preloadY[1]));
+
+        // load tiles near the center of the region first
+        if (cacheListener != null) {
+            float centerX = layer.getLeft() + (minTileX + maxTileX + 1) * 0.5f * layer.getTileSizeX() * layer.getMeterPerPixel();
+            float centerY = layer.getTop() - (minTileY + maxTileY + 1) * 0.5f * layer.getTileSizeY() * layer.getMeterPerPixel();
+            cacheListener.onFocusChanged(centerX, centerY);
+        }
+
+        Region region = new Region(layer, minTileX, maxTileX, minTileY, maxTileY, minPreloadX, maxPreloadX, minPreloadY, maxPreloadY);
+        Region oldRegion = regions.put(layer.getMap(), region);
+
+        // the visible, preloaded and fallback tiles of all maps share the cache and must never evict each other
+        int requiredBytes = 0;
+        for (Region mapRegion : regions.values()) {
+            requiredBytes += getRequiredBytes(mapRegion);
+        }
+        // grow up to a multiple of the budget and shrink back once the lookahead drops, a fling must not keep the memory
+        int size = Math.max(maxBytes, Math.min(requiredBytes, maxBytes * MAX_GROWTH));
+        if (size != tiles.maxSize()) {
+            Log.i(TAG, String.format("Resizing cache from %d to %d bytes (requiredBytes=%d, maxBytes=%d)", tiles.maxSize(), size, requiredBytes, maxBytes));
+            tiles.resize(size);
+        }
+        if (requiredBytes > size) {
+            Log.w(TAG, String.format("Cache of %d bytes too small for %d bytes of visible, preloaded and fallback tiles", size, requiredBytes));
+        }
+
+        // cancel loads of tiles leaving the region, all of them if the layer has changed
+        int cancelled = 0;
+        if (oldRegion != null) {
+            for (int y = oldRegion.minPreloadY; y <= oldRegion.maxPreloadY; y++) {
+                for (int x = oldRegion.minPreloadX; x <= oldRegion.maxPreloadX; x++) {
+
+                    // skip the part of the row still within the region
+                    if (region.isPreloaded(oldRegion.layer, x, y)) {
+                        x = region.maxPreloadX;
                         continue;
                     }
 
-                    if (tile.isLoading()) {
-                        if ((l != layerIndex) || (tile.getX() < minTileX || tile.getX() > maxTileX) && (tile.getY() < minTileY || tile.getY() > maxTileY)) {
-                            cancelLoad(tile);
-                            cache[l][y][x] = null;
-                        }
+                    if (cancelLoad(oldRegion.layer, x, y)) {
+                        cancelled++;
                     }
                 }
             }
         }
 
-        // order loads for all region's tiles
+        // order loads of tiles becoming visible, move up the ones already ordered for preloading
+        int ordered = 0;
         for (int y = maxTileY; y >= minTileY; y--) {
             for (int x = maxTileX; x >= minTileX; x--) {
-                getTile(layer, x, y, TileLoader.PRIORITY_HIGH);
+
+                if (oldRegion != null && oldRegion.isVisible(layer, x, y)) {
+                    x = oldRegion.minTileX;
+                    continue;
+                }
+
+                Tile tile = getTile(layer, x, y, TileLoader.PRIORITY_HIGH);
+                if (tile != null && tile.isLoading() && oldRegion != null && oldRegion.isPreloaded(layer, x, y)) {
+                    orderLoad(tile, TileLoader.PRIORITY_HIGH);
+                }
+                ordered++;
             }
         }
 
-        // order loads for preload region
-        for (int y = maxTileY + PRELOAD_SIZE; y >= minTileY - PRELOAD_SIZE; y--) {
-            if (y > maxTileY || y < minTileY) {
-                for (int x = maxTileX + PRELOAD_SIZE; x >= minTileX - PRELOAD_SIZE; x--) {
-                    getTile(layer, x, y, TileLoader.PRIORITY_LOW);
-                }
-            } else {
-                for (int x = maxTileX + PRELOAD_SIZE; x > maxTileX; x--) {
-                    getTile(layer, x, y, TileLoader.PRIORITY_LOW);
+        // order loads of tiles entering the preload region
+        for (int y = maxPreloadY; y >= minPreloadY; y--) {
+            for (int x = maxPreloadX; x >= minPreloadX; x--) {
+
+                if (region.isVisible(layer, x, y)) {
+                    x = minTileX;
+                    continue;
                 }
-                for (int x = minTileX - PRELOAD_SIZE; x < minTileX; x++) {
+
+                if (oldRegion == null || !oldRegion.isPreloaded(layer, x, y)) {
                     getTile(layer, x, y, TileLoader.PRIORITY_LOW);
+                    ordered++;
                 }
             }
         }
+
+        Log.i(TAG, String.format("Preloaded layer=%s: ordered=%d, cancelled=%d", layer.getName(), ordered, cancelled));
+    }
+
+    // cancels the load of the tile if it is still loading, returns true if it has been cancelled
+    private boolean cancelLoad(Layer layer, int x, int y) {
+
+        long key = Tile.key(layer, x, y);
+        Tile tile = orderedTiles.remove(key);
+
+        if (tile == null || !tile.isLoading()) {
+            return false;
+        }
+
+        cancelLoad(tile);
+        tiles.remove(key);
+
+        return true;
+    }
+
+    // the bytes of the region's preloaded tiles and of the tiles of the coarser and finer layer drawn while its visible tiles load
+    private static int getRequiredBytes(Region region) {
+
+        Layer layer = region.layer;
+        int bytes = (region.maxPreloadX - region.minPreloadX + 1) * (region.maxPreloadY - region.minPreloadY + 1) * getByteCount(layer);
+
+        if (layer.getLayerOut() != null) {
+            bytes += getFallbackTileCount(region, layer.getLayerOut()) * getByteCount(layer.getLayerOut());
+        }
+        if (layer.getLayerIn() != null) {
+            bytes += getFallbackTileCount(region, layer.getLayerIn()) * getByteCount(layer.getLayerIn());
+        }
+
+        return bytes;
+    }
+
+    // the number of tiles of the source layer intersecting the region's visible tiles, as peeked by MapView.drawFallback()
+    private static int getFallbackTileCount(Region region, Layer source) {
+
+        Layer layer = region.layer;
+        float tileMeterX = layer.getTileSizeX() * layer.getMeterPerPixel();
+        float tileMeterY = layer.getTileSizeY() * layer.getMeterPerPixel();
+        float left = layer.getLeft() + region.minTileX * tileMeterX;
+        float right = layer.getLeft() + (region.maxTileX + 1) * tileMeterX;
+        float top = layer.getTop() - region.minTileY * tileMeterY;
+        float bottom = layer.getTop() - (region.maxTileY + 1) * tileMeterY;
+
+        float sourceMeterX = source.getTileSizeX() * source.getMeterPerPixel();
+        float sourceMeterY = source.getTileSizeY() * source.getMeterPerPixel();
+        int minTileX = (int) Math.floor((left - source.getLeft()) / sourceMeterX);
+        int maxTileX = (int) Math.ceil((right - source.getLeft()) / sourceMeterX) - 1;
+        int minTileY = (int) Math.floor((source.getTop() - top) / sourceMeterY);
+        int maxTileY = (int) Math.ceil((source.getTop() - bottom) / sourceMeterY) - 1;
+
+        return Math.max(0, maxTileX - minTileX + 1) * Math.max(0, maxTileY - minTileY + 1);
+    }
+
+    // returns the number of tiles to preload before and after the region in one dimension
+    private static int[] getPreloadSizes(float tileVelocity, int lookahead) {
+
+        int before = PRELOAD_SIZE;
+        int after = PRELOAD_SIZE;
+
+        if (lookahead > 0) {
+            if (tileVelocity < 0) {
+                before = PRELOAD_SIZE + lookahead;
+                after = 0;
+            } else {
+                before = 0;
+                after = PRELOAD_SIZE + lookahead;
+            }
+        }
+
+        return new int[]{before, after};
     }
 
     private void orderLoad(Tile tile, int priority) {
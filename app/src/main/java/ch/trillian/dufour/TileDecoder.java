@@ -0,0 +1,120 @@
+package ch.trillian.dufour;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.os.Debug;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// decodes tile images into bitmaps taken from the BitmapPool
+public class TileDecoder {
+
+    private static final String TAG = "DECODER";
+
+    // the buffer used by BitmapFactory while decoding, one per decoding thread
+    private static final ThreadLocal<byte[]> tempStorage = new ThreadLocal<byte[]>() {
+
+        @Override
+        protected byte[] initialValue() {
+            return new byte[16 * 1024];
+        }
+    };
+
+    // the buffer a mapped image is copied to for decoding, one per decoding thread, grows to the largest image
+    private static final ThreadLocal<byte[]> imageBuffer = new ThreadLocal<byte[]>() {
+
+        @Override
+        protected byte[] initialValue() {
+            return new byte[64 * 1024];
+        }
+    };
+
+    // statistics
+    private static final AtomicInteger decodeCount = new AtomicInteger();
+    private static final AtomicInteger reuseCount = new AtomicInteger();
+    private static final AtomicInteger allocationCount = new AtomicInteger();
+
+    // returns the decoded image or null if it can't be decoded
+    public static Bitmap decode(byte[] image, Layer layer) {
+
+        if (image == null) {
+            return null;
+        }
+
+        return decode(image, 0, image.length, layer);
+    }
+
+    // decodes the remaining bytes of the buffer, BitmapFactory can't decode from a buffer, so they are copied into a reused array
+    // unless the buffer wraps an array
+    public static Bitmap decode(ByteBuffer image, Layer layer) {
+
+        int length = image.remaining();
+        if (image.hasArray()) {
+            return decode(image.array(), image.arrayOffset() + image.position(), length, layer);
+        }
+
+        byte[] buffer = imageBuffer.get();
+        if (buffer.length < length) {
+            buffer = new byte[Math.max(length, 2 * buffer.length)];
+            imageBuffer.set(buffer);
+        }
+        image.get(buffer, 0, length);
+
+        return decode(buffer, 0, length, layer);
+    }
+
+    public static Bitmap decode(byte[] image, int offset, int length, Layer layer) {
+
+        BitmapPool pool = BitmapPool.getInstance();
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inMutable = true;
+        options.inPreferredConfig = layer.getBitmapConfig();
+        options.inTempStorage = tempStorage.get();
+        options.inBitmap = pool.get(layer.getTileSizeX(), layer.getTileSizeY(), layer.getBitmapConfig());
+
+        decodeCount.incrementAndGet();
+
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeByteArray(image, offset, length, options);
+        } catch (IllegalArgumentException e) {
+
+            // the image doesn't fit into the pooled bitmap, decode into a new one
+            Log.w(TAG, "Can't reuse bitmap: " + e.getMessage());
+            pool.put(options.inBitmap);
+            options.inBitmap = null;
+            bitmap = BitmapFactory.decodeByteArray(image, offset, length, options);
+        }
+
+        if (bitmap != null && bitmap == options.inBitmap) {
+            reuseCount.incrementAndGet();
+        } else {
+            if (options.inBitmap != null) {
+                pool.put(options.inBitmap);
+            }
+            if (bitmap != null) {
+                allocationCount.incrementAndGet();
+            }
+        }
+
+        return bitmap;
+    }
+
+    // returns the bitmap of a tile no longer used to the pool
+    public static void release(Bitmap bitmap) {
+
+        BitmapPool.getInstance().put(bitmap);
+    }
+
+    public static String getStatistics() {
+
+        // the number of garbage collections is available from API 23
+        String gcCount = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M ? Debug.getRuntimeStat("art.gc.gc-count") : "?";
+
+        return String.format("decodes=%d, reused=%d, allocated=%d, gcCount=%s, pool: %s", decodeCount.get(), reuseCount.get(), allocationCount.get(), gcCount, BitmapPool.getInstance().getStatistics());
+    }
+}
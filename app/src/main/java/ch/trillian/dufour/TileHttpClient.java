@@ -0,0 +1,320 @@
+package ch.trillian.dufour;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+public class TileHttpClient {
+
+    private static final String TAG = "HTTP";
+
+    private static final String REFERER = "http://map.geo.admin.ch/";
+
+    // the number of seconds an idle connection is kept in the pool
+    private static final int KEEP_ALIVE_DURATION = 5 * 60;
+
+    private static final int CONNECT_TIMEOUT = 15 * 1000;
+    private static final int READ_TIMEOUT = 30 * 1000;
+
+    // the maximum number of remaining bytes read to the end of a cancelled download to keep its connection alive
+    private static final int DRAIN_THRESHOLD = 8 * 1024;
+
+    // the socket factory shared by all connections, connections are only pooled for the same factory
+    private final SSLSocketFactory socketFactory;
+
+    // statistics
+    private final AtomicInteger requestCount = new AtomicInteger();
+    private final AtomicInteger newConnectionCount = new AtomicInteger();
+    private final AtomicInteger fullHandshakeCount = new AtomicInteger();
+    private final AtomicInteger resumedHandshakeCount = new AtomicInteger();
+    private final AtomicInteger abortedCount = new AtomicInteger();
+    private final AtomicLong avoidedBytes = new AtomicLong();
+
+    // checked while downloading, a cancelled download is aborted
+    public interface Cancellable {
+
+        boolean isCancelled();
+    }
+
+    public static class CancelledException extends IOException {
+
+        public CancelledException() {
+
+            super("Download cancelled");
+        }
+    }
+
+    public static class Response {
+
+        private final int code;
+        private final byte[] body;
+        private final String etag;
+        private final String lastModified;
+
+        private Response(int code, byte[] body, String etag, String lastModified) {
+
+            this.code = code;
+            this.body = body;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        public int getCode() {
+            return code;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        public String getLastModified() {
+            return lastModified;
+        }
+    }
+
+    // HttpURLConnection's connection pool is configured via system properties, which are read when the pool is created by
+    // the first connection of the process, so this is called by DufourApplication.onCreate() before any connection is made
+    public static void configureConnectionPool(int maxConnectionsPerHost) {
+
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", String.valueOf(maxConnectionsPerHost));
+        System.setProperty("http.keepAliveDuration", String.valueOf(KEEP_ALIVE_DURATION * 1000));
+    }
+
+    public TileHttpClient(int maxConnectionsPerHost) {
+
+        // the pool keeps fewer idle connections than this client may open in parallel
+        if (maxConnectionsPerHost > Integer.parseInt(System.getProperty("http.maxConnections", "5"))) {
+            Log.w(TAG, "Connection pool keeps fewer connections than " + maxConnectionsPerHost);
+        }
+
+        SSLSocketFactory defaultFactory;
+        try {
+            defaultFactory = SSLContext.getDefault().getSocketFactory();
+        } catch (NoSuchAlgorithmException e) {
+            Log.w(TAG, "No default SSLContext: " + e.getMessage());
+            defaultFactory = HttpsURLConnection.getDefaultSSLSocketFactory();
+        }
+
+        socketFactory = new CountingSocketFactory(defaultFactory);
+    }
+
+    public Response get(String url) throws IOException {
+
+        return get(url, null, null);
+    }
+
+    // returns HTTP_NOT_MODIFIED without body if the given validators are still valid
+    public Response get(String url, String etag, String lastModified) throws IOException {
+
+        return get(url, etag, lastModified, null);
+    }
+
+    // throws CancelledException if the download has been cancelled before it has been read to the end
+    public Response get(String url, String etag, String lastModified, Cancellable cancellable) throws IOException {
+
+        if (cancellable != null && cancellable.isCancelled()) {
+            abortedCount.incrementAndGet();
+            throw new CancelledException();
+        }
+
+        requestCount.incrementAndGet();
+
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        if (connection instanceof HttpsURLConnection) {
+            ((HttpsURLConnection) connection).setSSLSocketFactory(socketFactory);
+        }
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+        connection.addRequestProperty("referer", REFERER);
+        if (etag != null) {
+            connection.addRequestProperty("If-None-Match", etag);
+        }
+        if (lastModified != null) {
+            connection.addRequestProperty("If-Modified-Since", lastModified);
+        }
+
+        int code = connection.getResponseCode();
+
+        // the body has to be read to the end and closed (not disconnected) to return the connection to the pool
+        InputStream inputStream = code < HttpURLConnection.HTTP_BAD_REQUEST ? connection.getInputStream() : connection.getErrorStream();
+        byte[] body = null;
+        if (inputStream != null) {
+            try {
+                body = readFully(connection, inputStream, cancellable);
+            } finally {
+                inputStream.close();
+            }
+        }
+
+        return new Response(code, body, connection.getHeaderField("ETag"), connection.getHeaderField("Last-Modified"));
+    }
+
+    private byte[] readFully(HttpURLConnection connection, InputStream inputStream, Cancellable cancellable) throws IOException {
+
+        int contentLength = connection.getContentLength();
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        int numRead;
+        byte[] block = new byte[16384];
+        while ((numRead = inputStream.read(block, 0, block.length)) != -1) {
+            buffer.write(block, 0, numRead);
+
+            if (cancellable != null && cancellable.isCancelled()) {
+
+                // finish small rests, aborting closes the connection instead of returning it to the pool
+                int remaining = contentLength >= 0 ? contentLength - buffer.size() : -1;
+                if (remaining >= 0 && remaining <= DRAIN_THRESHOLD) {
+                    cancellable = null;
+                    continue;
+                }
+
+                abortedCount.incrementAndGet();
+                avoidedBytes.addAndGet(Math.max(0, remaining));
+                connection.disconnect();
+                throw new CancelledException();
+            }
+        }
+
+        return buffer.toByteArray();
+    }
+
+    public int getRequestCount() {
+        return requestCount.get();
+    }
+
+    public int getNewConnectionCount() {
+        return newConnectionCount.get();
+    }
+
+    public int getReusedConnectionCount() {
+        return Math.max(0, requestCount.get() - newConnectionCount.get());
+    }
+
+    public int getFullHandshakeCount() {
+        return fullHandshakeCount.get();
+    }
+
+    public int getResumedHandshakeCount() {
+        return resumedHandshakeCount.get();
+    }
+
+    public int getAbortedCount() {
+        return abortedCount.get();
+    }
+
+    // the number of bytes not downloaded due to aborted downloads, as far as their length was known
+    public long getAvoidedBytes() {
+        return avoidedBytes.get();
+    }
+
+    public String getStatistics() {
+
+        return String.format("requests=%d, newConnections=%d, reusedConnections=%d, fullHandshakes=%d, resumedHandshakes=%d, aborted=%d, avoidedBytes=%d",
+                getRequestCount(), getNewConnectionCount(), getReusedConnectionCount(), getFullHandshakeCount(), getResumedHandshakeCount(), getAbortedCount(), getAvoidedBytes());
+    }
+
+    private class CountingSocketFactory extends SSLSocketFactory {
+
+        private final SSLSocketFactory delegate;
+
+        public CountingSocketFactory(SSLSocketFactory delegate) {
+
+            this.delegate = delegate;
+        }
+
+        private Socket count(Socket socket) {
+
+            newConnectionCount.incrementAndGet();
+
+            if (socket instanceof SSLSocket) {
+
+                final long createdAt = System.currentTimeMillis();
+
+                ((SSLSocket) socket).addHandshakeCompletedListener(new HandshakeCompletedListener() {
+
+                    @Override
+                    public void handshakeCompleted(HandshakeCompletedEvent event) {
+
+                        // a resumed session was created before this socket existed
+                        if (event.getSession().getCreationTime() < createdAt) {
+                            resumedHandshakeCount.incrementAndGet();
+                        } else {
+                            fullHandshakeCount.incrementAndGet();
+                        }
+                    }
+                });
+            }
+
+            return socket;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+
+            return delegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+
+            return delegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+
+            return count(delegate.createSocket(socket, host, port, autoClose));
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+
+            return count(delegate.createSocket());
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+
+            return count(delegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+
+            return count(delegate.createSocket(host, port, localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+
+            return count(delegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+
+            return count(delegate.createSocket(address, port, localAddress, localPort));
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package ch.trillian.dufour;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+
+// one bit per tile on DB by its key, tells whether a tile is on DB without reading it
+public class TileIndex {
+
+    // the rows of tiles by layer ID, each row is a bitset indexed by x
+    private final HashMap<Long, ArrayList<BitSet>> layers = new HashMap<>();
+
+    // the number of tiles in the index
+    private int count;
+
+    public synchronized void add(long key) {
+
+        ArrayList<BitSet> rows = layers.get(key >> TileTable.LAYER_SHIFT);
+        if (rows == null) {
+            rows = new ArrayList<>();
+            layers.put(key >> TileTable.LAYER_SHIFT, rows);
+        }
+
+        int y = TileTable.getY(key);
+        while (rows.size() <= y) {
+            rows.add(null);
+        }
+
+        BitSet row = rows.get(y);
+        if (row == null) {
+            row = new BitSet();
+            rows.set(y, row);
+        }
+
+        int x = TileTable.getX(key);
+        if (!row.get(x)) {
+            row.set(x);
+            count++;
+        }
+    }
+
+    public synchronized void remove(long key) {
+
+        BitSet row = getRow(key);
+        if (row != null && row.get(TileTable.getX(key))) {
+            row.clear(TileTable.getX(key));
+            count--;
+        }
+    }
+
+    public synchronized boolean contains(long key) {
+
+        BitSet row = getRow(key);
+
+        return row != null && row.get(TileTable.getX(key));
+    }
+
+    public synchronized void clear() {
+
+        layers.clear();
+        count = 0;
+    }
+
+    public synchronized String getStatistics() {
+
+        int rowCount = 0;
+        long bytes = 0;
+        for (ArrayList<BitSet> rows : layers.values()) {
+            for (BitSet row : rows) {
+                if (row != null) {
+                    rowCount++;
+                    bytes += row.size() / 8;
+                }
+            }
+        }
+
+        return String.format("tiles=%d, layers=%d, rows=%d, bytes=%d", count, layers.size(), rowCount, bytes);
+    }
+
+    private BitSet getRow(long key) {
+
+        ArrayList<BitSet> rows = layers.get(key >> TileTable.LAYER_SHIFT);
+        int y = TileTable.getY(key);
+
+        return rows == null || y >= rows.size() ? null : rows.get(y);
+    }
+}
@@ -2,17 +2,16 @@ package ch.trillian.dufour;
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.os.Handler;
 import android.os.Message;
 import android.util.Log;
 
-import java.io.ByteArrayOutputStream;
-import java.io.InputStream;
 import java.lang.ref.WeakReference;
 import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.ArrayDeque;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class TileLoader {
 
@@ -25,15 +24,35 @@ public class TileLoader {
     private static final int LOADED_FROM_DB = 1;
     private static final int LOADED_FROM_URL = 2;
     private static final int LOAD_FAILED = 3;
+    private static final int REVALIDATED = 4;
 
     // the minimum number of milliseconds before updating a tile's LAST_USED
     private static final int LAST_USED_THRESHOLD = 24 * 60 * 60 * 1000;
 
-    // the maximum number of tiles to keep on DB
-    private static int MAX_NUMBER_OF_TILES = 10000;
+    // the minimum number of milliseconds before revalidating a cached tile against the server
+    private static final long REVALIDATE_THRESHOLD = 30L * 24 * 60 * 60 * 1000;
 
-    // the number of tiles to delete from DB at once
-    private static int DELETE_CHUNK_SIZE = 25;
+    // the maximum number of tiles read from DB with one query
+    private static final int BATCH_SIZE = 16;
+
+    // the maximum distance in tiles of a batch's tiles from the first one
+    private static final int BATCH_SPAN = 3;
+
+    // the assumed number of milliseconds to load a tile before any tile has been loaded
+    private static final long DEFAULT_LOAD_LATENCY = 500;
+
+    // the weight of a new sample in the smoothed load latency
+    private static final float LOAD_LATENCY_SMOOTHING = 0.2f;
+
+    // policies for downloads cancelled while in flight
+    public static final int CANCEL_ABORT = 0;
+    public static final int CANCEL_PERSIST = 1;
+
+    // the default number of download threads
+    public static final int DEFAULT_DOWNLOAD_THREADS = 4;
+
+    // the default maximum number of concurrent downloads from the same host
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 4;
 
     // the listener for finished loads
     private LoadListener loadListener;
@@ -44,9 +63,48 @@ public class TileLoader {
     // the database loader with it's own thread
     private DatabaseLoader databaseLoader;
 
-    // the URL loader with it's own thread
+    // the URL loader with it's own pool of threads
     private UrlLoader urlLoader;
 
+    // the HTTP client keeping connections alive between tiles
+    private final TileHttpClient httpClient;
+
+    // the writer persisting loaded tiles in the background
+    private final TileWriter tileWriter;
+
+    // the encoded images of recently loaded tiles
+    private final EncodedTileCache encodedTileCache;
+
+    // the offline tiles looked up after DB or null if there are none, opened by the caller
+    private volatile TileStore packStore;
+
+    // the requests currently in flight by tile key
+    private final HashMap<Long, TileRequest> requests = new HashMap<>();
+
+    // the CH1903 coordinates of the viewport center, tiles nearer to it are loaded first
+    private volatile float focusX;
+    private volatile float focusY;
+
+    // statistics
+    private int orderCount;
+    private int coalescedCount;
+
+    // abort cancelled downloads or finish and persist them without decoding
+    private volatile int cancelPolicy = CANCEL_ABORT;
+
+    // the number of cancelled downloads persisted without decoding
+    private final AtomicInteger persistedCancelledCount = new AtomicInteger();
+
+    // the number of tiles downloaded without looking them up on DB as they are known to be missing
+    private final AtomicInteger skippedDatabaseCount = new AtomicInteger();
+
+    // the time the first tile has been ordered since resuming and whether it has been loaded, used on the main thread only
+    private long firstOrderedAt;
+    private boolean firstLoaded;
+
+    // the smoothed number of milliseconds from ordering a tile until it has been loaded
+    private float loadLatency = DEFAULT_LOAD_LATENCY;
+
     public interface LoadListener {
 
         void onLoadFinished(Tile tile);
@@ -65,33 +123,51 @@ public class TileLoader {
 
             TileLoader tileLoader = tileLoaderRef.get();
             if (tileLoader != null) {
-                LoadListener listener = tileLoader.loadListener;
-                if (listener != null) {
-                    listener.onLoadFinished((Tile) message.obj);
-                } else {
-                    Log.w(TAG, "LoadListener is null");
-                }
+                tileLoader.onRequestFinished(message.what, (TileRequest) message.obj);
             }
         }
     }
 
     public TileLoader(Context context) {
 
+        this(context, DEFAULT_DOWNLOAD_THREADS, DEFAULT_MAX_CONNECTIONS_PER_HOST);
+    }
+
+    public TileLoader(Context context, int downloadThreads, int maxConnectionsPerHost) {
+
         MapDatabase.newInstance(context);
 
         handler = new LoaderHandler(this);
+        httpClient = new TileHttpClient(maxConnectionsPerHost);
+        tileWriter = new TileWriter();
+        encodedTileCache = EncodedTileCache.newInstance(context);
         databaseLoader = new DatabaseLoader();
-        urlLoader = new UrlLoader();
+        urlLoader = new UrlLoader(downloadThreads, maxConnectionsPerHost);
     }
 
     public void onPause() {
 
         databaseLoader.onPause();
         urlLoader.onPause();
+        tileWriter.flush();
+
+        Log.i(TAG, "HTTP statistics: " + httpClient.getStatistics());
+        Log.i(TAG, "Loader statistics: " + getStatistics());
+        Log.i(TAG, "Decoder statistics: " + TileDecoder.getStatistics());
+        Log.i(TAG, "Encoded cache statistics: " + encodedTileCache.getStatistics());
+        Log.i(TAG, "Database statistics: " + MapDatabase.getInstance().getStatistics());
+        Log.i(TAG, "Index statistics: " + MapDatabase.getInstance().getIndexStatistics());
+        if (packStore != null) {
+            Log.i(TAG, "Pack statistics: " + packStore.getStatistics());
+        }
     }
 
     public void onResume() {
 
+        // measure the time to the first tile again
+        firstOrderedAt = 0;
+        firstLoaded = false;
+
         databaseLoader.onResume();
         urlLoader.onResume();
     }
@@ -100,6 +176,17 @@ public class TileLoader {
 
         databaseLoader.onDestroy();
         urlLoader.onDestroy();
+        tileWriter.onDestroy();
+    }
+
+    public TileHttpClient getHttpClient() {
+
+        return httpClient;
+    }
+
+    public void setPackStore(TileStore packStore) {
+
+        this.packStore = packStore;
     }
 
     public void setLoadListener(LoadListener loadListener) {
@@ -109,13 +196,158 @@ public class TileLoader {
 
     public void orderLoadTile(Tile tile, int priority) {
 
-        databaseLoader.orderLoad(tile, priority);
+        TileRequest request;
+
+        if (firstOrderedAt == 0) {
+            firstOrderedAt = System.currentTimeMillis();
+        }
+
+        synchronized (requests) {
+
+            orderCount++;
+
+            // join the request already in flight for the same tile
+            request = requests.get(tile.getKey());
+            if (request != null) {
+                if (!request.getWaiters().contains(tile)) {
+                    request.getWaiters().add(tile);
+                    coalescedCount++;
+                }
+
+                // tile has been loaded from DB and is being revalidated
+                if (request.getTile().isOk()) {
+                    tile.assign(request.getTile());
+                    return;
+                }
+
+                // move request up if it's needed more urgently now
+                if (priority < request.getPriority()) {
+                    databaseLoader.reprioritize(request, priority);
+                    urlLoader.reprioritize(request, priority);
+                }
+
+                return;
+            }
+
+            request = new TileRequest(tile.getLayer(), tile.getX(), tile.getY(), priority);
+            request.getWaiters().add(tile);
+            requests.put(request.getKey(), request);
+        }
+
+        // a tile known to be missing is downloaded without waiting for the database thread
+        if (isMissing(request.getTile())) {
+            skippedDatabaseCount.incrementAndGet();
+            urlLoader.orderLoad(request);
+            return;
+        }
+
+        databaseLoader.orderLoad(request);
+    }
+
+    // returns true if the tile is neither pending, in the encoded cache, on DB nor in the offline tiles
+    private boolean isMissing(Tile tile) {
+
+        return packStore == null && tileWriter.getPending(tile) == null && !encodedTileCache.contains(tile) && MapDatabase.getInstance().isMissing(tile);
     }
 
     public void cancelLoadTile(Tile tile) {
 
-        databaseLoader.cancelLoad(tile);
-        urlLoader.cancelLoad(tile);
+        TileRequest request;
+
+        synchronized (requests) {
+
+            request = requests.get(tile.getKey());
+            if (request == null || !request.getWaiters().remove(tile)) {
+                return;
+            }
+
+            // other tiles are still waiting for this request
+            if (!request.getWaiters().isEmpty()) {
+                return;
+            }
+
+            requests.remove(request.getKey());
+        }
+
+        // stops the download if it is already in flight
+        request.cancel();
+
+        databaseLoader.cancelLoad(request);
+        urlLoader.cancelLoad(request);
+    }
+
+    public void setCancelPolicy(int cancelPolicy) {
+
+        this.cancelPolicy = cancelPolicy;
+    }
+
+    public void setFocus(float ch1903X, float ch1903Y) {
+
+        focusX = ch1903X;
+        focusY = ch1903Y;
+
+        databaseLoader.setFocus(ch1903X, ch1903Y);
+        urlLoader.setFocus(ch1903X, ch1903Y);
+    }
+
+    public String getStatistics() {
+
+        synchronized (requests) {
+            return String.format("orders=%d, coalesced=%d, inFlight=%d, persistedCancelled=%d, skippedDatabase=%d", orderCount, coalescedCount, requests.size(), persistedCancelledCount.get(), skippedDatabaseCount.get());
+        }
+    }
+
+    public long getLoadLatency() {
+
+        return (long) loadLatency;
+    }
+
+    private void onRequestFinished(int what, TileRequest request) {
+
+        // measure the latency of the first result only, not the one of revalidation
+        if (what == LOADED_FROM_DB || what == LOADED_FROM_URL && !request.isRevalidating()) {
+            loadLatency += (System.currentTimeMillis() - request.getCreated() - loadLatency) * LOAD_LATENCY_SMOOTHING;
+        }
+
+        if (!firstLoaded && firstOrderedAt != 0 && (what == LOADED_FROM_DB || what == LOADED_FROM_URL)) {
+            firstLoaded = true;
+            Log.i(TAG, String.format("First tile loaded from %s in %d ms (tileCount=%d)", what == LOADED_FROM_DB ? "DB" : "URL", (System.currentTimeMillis() - firstOrderedAt), MapDatabase.getInstance().getTileCount()));
+        }
+
+        ArrayList<Tile> waiters;
+
+        synchronized (requests) {
+
+            // a request loaded from DB stays in flight while being revalidated
+            boolean finished = what != LOADED_FROM_DB || !request.isRevalidating();
+            if (finished && requests.get(request.getKey()) == request) {
+                requests.remove(request.getKey());
+            }
+
+            waiters = new ArrayList<>(request.getWaiters());
+        }
+
+        // nothing changed for the waiting tiles
+        if (what == REVALIDATED) {
+            return;
+        }
+
+        for (Tile tile : waiters) {
+
+            // a revalidated tile's former bitmap is released by the cache once no frame draws it any more
+            Bitmap oldBitmap = tile.getBitmap();
+            tile.assign(request.getTile());
+            TileCache tileCache = tile.getLayer().getMap().getTileCache();
+            if (oldBitmap != null && oldBitmap != tile.getBitmap() && tileCache != null) {
+                tileCache.releaseBitmap(oldBitmap);
+            }
+
+            if (loadListener != null) {
+                loadListener.onLoadFinished(tile);
+            } else {
+                Log.w(TAG, "LoadListener is null");
+            }
+        }
     }
 
     private class DatabaseLoader implements Runnable {
@@ -123,16 +355,12 @@ public class TileLoader {
         private boolean pause;
         private boolean destroy;
         private Thread thread;
-        private final ArrayDeque<Tile>[] queues = new ArrayDeque[NUMBER_OF_PRIORITIES];
+        private final LoadQueue queue = new LoadQueue();
 
         public DatabaseLoader() {
 
             thread = new Thread(this);
             thread.start();
-
-            for (int i = 0; i < NUMBER_OF_PRIORITIES; i++) {
-                queues[i] = new ArrayDeque<>();
-            }
         }
 
         public void onPause() {
@@ -159,38 +387,43 @@ public class TileLoader {
             }
         }
 
-        private int totalQueuesSize() {
+        public void orderLoad(TileRequest request) {
 
-            int number = 0;
+            synchronized (this) {
 
-            for (ArrayDeque queue: queues) {
-                number += queue.size();
-            }
+                request.setPriority(Math.min(Math.max(0, request.getPriority()), NUMBER_OF_PRIORITIES - 1));
+                request.updateDistance(focusX, focusY);
+
+                // put tile in order queue
+                queue.offer(request);
 
-            return number;
+                if (queue.size() == 1) {
+                    this.notify();
+                }
+            }
         }
 
-        public void orderLoad(Tile tile, int priority) {
+        public void cancelLoad(TileRequest request) {
 
             synchronized (this) {
+                queue.remove(request);
+            }
+        }
 
-                priority = Math.min(Math.max(0, priority), NUMBER_OF_PRIORITIES);
-
-                // put tile in order queue
-                queues[priority].offer(tile);
+        public void reprioritize(TileRequest request, int priority) {
 
-                if (totalQueuesSize() == 1) {
-                    this.notify();
+            synchronized (this) {
+                if (queue.contains(request)) {
+                    request.setPriority(priority);
+                    queue.update(request);
                 }
             }
         }
 
-        public void cancelLoad(Tile tile) {
+        public void setFocus(float ch1903X, float ch1903Y) {
 
             synchronized (this) {
-                for (ArrayDeque queue: queues) {
-                    queue.remove(tile);
-                }
+                queue.setFocus(ch1903X, ch1903Y);
             }
         }
 
@@ -205,9 +438,12 @@ public class TileLoader {
 
                 database.openDatabase();
 
+                ArrayList<TileRequest> batch = new ArrayList<>(BATCH_SIZE);
+
                 while (true) {
 
-                    Tile tile = null;
+                    TileRequest request;
+                    batch.clear();
 
                     synchronized (this) {
 
@@ -222,29 +458,18 @@ public class TileLoader {
                             continue;
                         }
 
-                        // for (ArrayDeque<Tile> queue: queues) {
-                        for (int i = 0; i < NUMBER_OF_PRIORITIES; i++) {
-                            if ((tile = queues[i].poll()) != null) {
-                                Log.i(TAG, "DatabaseThread dequeued tile from priority: " + i);
-                                break;
-                            }
-                        }
-
-                        if (tile == null) {
+                        if ((request = queue.poll()) == null) {
                             Log.i(TAG, "DatabaseThread waiting (loaded " + numTiles + " tiles).");
                             this.wait();
                             numTiles = 0;
                             continue;
                         }
-                    }
 
-                    if (getTileFromDatabase(database, tile)) {
-                        numTiles++;
-                        continue;
+                        batch.add(request);
+                        pollNeighbours(request, batch);
                     }
 
-                    // order tile from download thread
-                    urlLoader.orderLoad(tile);
+                    numTiles += getTilesFromDatabase(database, batch);
                 }
 
             } catch (InterruptedException e) {
@@ -256,24 +481,147 @@ public class TileLoader {
             Log.i(TAG, "DatabaseThread has been shut down.");
         }
 
-        private boolean getTileFromDatabase(MapDatabase database, Tile tile) {
+        // moves queued requests of the same layer near the given one into the batch, must be called synchronized
+        private void pollNeighbours(TileRequest request, ArrayList<TileRequest> batch) {
+
+            Tile tile = request.getTile();
+
+            for (int i = queue.size() - 1; i >= 0 && batch.size() < BATCH_SIZE; i--) {
+                TileRequest neighbour = queue.get(i);
+                Tile neighbourTile = neighbour.getTile();
+                if (neighbourTile.getLayer() == tile.getLayer() && Math.abs(neighbourTile.getX() - tile.getX()) <= BATCH_SPAN && Math.abs(neighbourTile.getY() - tile.getY()) <= BATCH_SPAN) {
+                    queue.remove(neighbour);
+                    batch.add(neighbour);
+
+                    // removing may have moved an unvisited request to this position
+                    i = Math.min(i + 1, queue.size());
+                }
+            }
+        }
+
+        // reads a batch of tiles of the same layer and orders the missing ones from the download threads
+        private int getTilesFromDatabase(MapDatabase database, ArrayList<TileRequest> batch) {
 
-            // read image from database
-            if (!database.readTile(tile)) {
+            int found = 0;
+
+            // tiles not yet written are taken from the writer, recently loaded ones from the encoded cache
+            ArrayList<Tile> tiles = new ArrayList<>(batch.size());
+            for (TileRequest request : batch) {
+                if (getTileFromWriter(request.getTile()) || getTileFromEncodedCache(request.getTile())) {
+                    found++;
+                } else {
+                    tiles.add(request.getTile());
+                }
+            }
+
+            // read images from database, skipping the tiles known to be missing
+            ArrayList<Tile> databaseTiles = new ArrayList<>(tiles.size());
+            for (Tile tile : tiles) {
+                if (!database.isMissing(tile)) {
+                    databaseTiles.add(tile);
+                }
+            }
+            if (!databaseTiles.isEmpty()) {
+                found += database.readTiles(databaseTiles.get(0).getLayer(), databaseTiles, databaseConsumer);
+            }
+
+            // read the images not on database from the offline tiles
+            TileStore packStore = TileLoader.this.packStore;
+            if (packStore != null && found < batch.size()) {
+                ArrayList<Tile> missing = new ArrayList<>(tiles.size());
+                for (Tile tile : tiles) {
+                    if (!tile.isOk()) {
+                        missing.add(tile);
+                    }
+                }
+                if (!missing.isEmpty()) {
+                    found += packStore.readTiles(missing.get(0).getLayer(), missing, packConsumer);
+                }
+            }
+
+            for (TileRequest request : batch) {
+                if (request.getTile().isOk()) {
+                    onTileFromDatabase(request);
+                } else {
+                    urlLoader.orderLoad(request);
+                }
+            }
+
+            return found;
+        }
+
+        // decodes the tiles read from DB and keeps their encoded images for reading them again without DB
+        private final TileStore.TileConsumer databaseConsumer = new TileStore.TileConsumer() {
+
+            @Override
+            public void onTile(Tile tile, ByteBuffer image) {
+
+                byte[] encodedImage = image == null ? null : image.array();
+                tile.setBitmap(TileDecoder.decode(encodedImage, tile.getLayer()));
+                encodedTileCache.put(tile, encodedImage);
+            }
+        };
+
+        // decodes the tiles read from the offline tiles, which are mapped and not kept in the encoded cache
+        private final TileStore.TileConsumer packConsumer = new TileStore.TileConsumer() {
+
+            @Override
+            public void onTile(Tile tile, ByteBuffer image) {
+
+                tile.setBitmap(image == null ? null : TileDecoder.decode(image, tile.getLayer()));
+            }
+        };
+
+        private boolean getTileFromWriter(Tile tile) {
+
+            TileWriter.PendingWrite write = tileWriter.getPending(tile);
+            if (write == null || !write.isImageWrite()) {
                 return false;
             }
 
-            // notify GUI
-            handler.obtainMessage(LOADED_FROM_DB, tile).sendToTarget();
+            byte[] image = write.getImage();
+            tile.assign(write.getTile());
+            tile.setBitmap(TileDecoder.decode(image, tile.getLayer()));
+
+            return true;
+        }
+
+        private boolean getTileFromEncodedCache(Tile tile) {
+
+            EncodedTileCache.Entry entry = encodedTileCache.get(tile);
+            if (entry == null) {
+                return false;
+            }
+
+            tile.assign(entry.getTile());
+            tile.setBitmap(TileDecoder.decode(entry.getImage(), tile.getLayer()));
+
+            return true;
+        }
+
+        private void onTileFromDatabase(TileRequest request) {
+
+            Tile tile = request.getTile();
 
-            // update last used if update threshold reached
+            // revalidate tile in background while the cached one is shown
             long now = System.currentTimeMillis();
+            boolean revalidate = now - tile.getFetchedAt() > REVALIDATE_THRESHOLD;
+            request.setRevalidating(revalidate);
+
+            // notify GUI
+            handler.obtainMessage(LOADED_FROM_DB, request).sendToTarget();
+
+            // record last used if update threshold reached, it is written later together with others
             if (now - tile.getLastUsed() > LAST_USED_THRESHOLD) {
                 tile.setLastUsed(now);
-                database.updateLastUsed(tile);
+                tileWriter.touch(tile);
+                encodedTileCache.update(tile);
             }
 
-            return true;
+            if (revalidate) {
+                request.setPriority(PRIORITY_LOW);
+                urlLoader.orderLoad(request);
+            }
         }
     }
 
@@ -281,185 +629,275 @@ public class TileLoader {
 
         private boolean pause;
         private boolean destroy;
-        private Thread thread;
-        private final ArrayDeque<Tile> queue = new ArrayDeque<>();
+        private final Thread[] threads;
+        private final int maxConnectionsPerHost;
+        private final HashMap<String, LoadQueue> queuesPerHost = new HashMap<>();
+        private final HashMap<String, Integer> connectionsPerHost = new HashMap<>();
 
-        public UrlLoader() {
+        public UrlLoader(int numberOfThreads, int maxConnectionsPerHost) {
 
-            thread = new Thread(this);
-            thread.start();
+            this.maxConnectionsPerHost = Math.max(1, maxConnectionsPerHost);
+
+            threads = new Thread[Math.max(1, numberOfThreads)];
+            for (int i = 0; i < threads.length; i++) {
+                threads[i] = new Thread(this, "DownloadThread-" + i);
+                threads[i].start();
+            }
         }
 
         public void onPause() {
 
-            synchronized (queue) {
+            synchronized (this) {
                 pause = true;
-                queue.notify();
+                this.notifyAll();
             }
         }
 
         public void onDestroy() {
 
-            synchronized (queue) {
+            synchronized (this) {
                 destroy = true;
-                queue.notify();
+                this.notifyAll();
             }
         }
 
         public void onResume() {
 
-            synchronized (queue) {
+            synchronized (this) {
                 pause = false;
-                queue.notify();
+                this.notifyAll();
             }
         }
 
-        public void orderLoad(Tile tile) {
+        public void orderLoad(TileRequest request) {
 
-            synchronized (queue) {
+            synchronized (this) {
 
-                // put tile in order queue
-                queue.offer(tile);
+                request.setPriority(Math.min(Math.max(0, request.getPriority()), NUMBER_OF_PRIORITIES - 1));
+                request.updateDistance(focusX, focusY);
 
-                // (re)start thread
-                if (thread == null) {
-                    thread = new Thread(this);
-                    thread.start();
+                // put tile in the order queue of its host
+                String host = request.getTile().getLayer().getUrlHost();
+                LoadQueue queue = queuesPerHost.get(host);
+                if (queue == null) {
+                    queue = new LoadQueue();
+                    queuesPerHost.put(host, queue);
                 }
+                queue.offer(request);
 
-                if (queue.size() == 1) {
-                    queue.notify();
+                this.notify();
+            }
+        }
+
+        public void cancelLoad(TileRequest request) {
+
+            synchronized (this) {
+                LoadQueue queue = queuesPerHost.get(request.getTile().getLayer().getUrlHost());
+                if (queue != null) {
+                    queue.remove(request);
+                }
+            }
+        }
+
+        public void reprioritize(TileRequest request, int priority) {
+
+            synchronized (this) {
+                LoadQueue queue = queuesPerHost.get(request.getTile().getLayer().getUrlHost());
+                if (queue != null && queue.contains(request)) {
+                    request.setPriority(priority);
+                    queue.update(request);
                 }
             }
         }
 
-        public void cancelLoad(Tile tile) {
+        public void setFocus(float ch1903X, float ch1903Y) {
 
-            synchronized (queue) {
-                queue.remove(tile);
+            synchronized (this) {
+                for (LoadQueue queue : queuesPerHost.values()) {
+                    queue.setFocus(ch1903X, ch1903Y);
+                }
+            }
+        }
+
+        // returns the first tile of all hosts having a free connection, must be called synchronized
+        private TileRequest pollRequest() {
+
+            LoadQueue bestQueue = null;
+            String bestHost = null;
+
+            for (String host : queuesPerHost.keySet()) {
+                LoadQueue queue = queuesPerHost.get(host);
+                if (queue.isEmpty()) {
+                    continue;
+                }
+                Integer connections = connectionsPerHost.get(host);
+                if (connections != null && connections >= maxConnectionsPerHost) {
+                    continue;
+                }
+                if (bestQueue == null || LoadQueue.compare(queue.peek(), bestQueue.peek()) < 0) {
+                    bestQueue = queue;
+                    bestHost = host;
+                }
+            }
+
+            if (bestQueue == null) {
+                return null;
+            }
+
+            Integer connections = connectionsPerHost.get(bestHost);
+            connectionsPerHost.put(bestHost, connections == null ? 1 : connections + 1);
+
+            return bestQueue.poll();
+        }
+
+        private void releaseConnection(TileRequest request) {
+
+            synchronized (this) {
+                String host = request.getTile().getLayer().getUrlHost();
+                Integer connections = connectionsPerHost.get(host);
+                if (connections == null || connections <= 1) {
+                    connectionsPerHost.remove(host);
+                } else {
+                    connectionsPerHost.put(host, connections - 1);
+                }
+                this.notifyAll();
             }
         }
 
         public void run() {
 
-            Log.i(TAG, "DownloadThread started.");
+            String name = Thread.currentThread().getName();
+
+            Log.i(TAG, name + " started.");
 
-            MapDatabase database = MapDatabase.getInstance();
             int numTiles = 0;
 
             try {
 
-                database.openDatabase();
-
                 while (true) {
 
-                    Tile tile;
+                    TileRequest request;
 
-                    synchronized (queue) {
+                    synchronized (this) {
 
                         if (destroy) {
                             break;
                         }
 
                         if (pause) {
-                            Log.i(TAG, "DownloadThread paused (downloaded " + numTiles + " tiles).");
-                            queue.wait();
+                            Log.i(TAG, name + " paused (downloaded " + numTiles + " tiles).");
+                            this.wait();
                             numTiles = 0;
                             continue;
                         }
 
-                        if ((tile = queue.poll()) == null) {
-                            Log.i(TAG, "DownloadThread waiting (downloaded " + numTiles + " tiles).");
-                            queue.wait();
+                        if ((request = pollRequest()) == null) {
+                            Log.i(TAG, name + " waiting (downloaded " + numTiles + " tiles).");
+                            this.wait();
                             numTiles = 0;
                             continue;
                         }
                     }
 
-                    getTileFromUrl(database, tile);
+                    try {
+                        getTileFromUrl(request);
+                    } finally {
+                        releaseConnection(request);
+                    }
 
                     numTiles++;
                 }
 
             } catch (InterruptedException e) {
-                Log.w(TAG, "DownloadThread has been interrupted.");
+                Log.w(TAG, name + " has been interrupted.");
             }
 
-            database.closeDatabase();
-
-            Log.i(TAG, "DownloadThread has been shut down.");
+            Log.i(TAG, name + " has been shut down.");
         }
 
-        private boolean getTileFromUrl(MapDatabase database, Tile tile) {
+        private boolean getTileFromUrl(TileRequest request) {
+
+            Tile tile = request.getTile();
+
+            // tiles already loaded from database are revalidated only
+            boolean revalidate = request.isRevalidating();
 
             try {
-                long start = System.currentTimeMillis();
-
-                // open http stream
-                URL url = new URL(tile.getUrl());
-                HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-                connection.addRequestProperty("referer", "http://map.geo.admin.ch/");
-                InputStream inputStream = connection.getInputStream();
-
-                if (connection.getResponseCode() == HttpURLConnection.HTTP_OK || connection.getResponseCode() == HttpURLConnection.HTTP_NO_CONTENT) {
-
-                    // read inputStream into byte[] if there is data
-                    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-                    if (connection.getResponseCode() == HttpURLConnection.HTTP_OK) {
-                        int numRead;
-                        byte[] block = new byte[16384];
-                        while ((numRead = inputStream.read(block, 0, block.length)) != -1) {
-                            buffer.write(block, 0, numRead);
-                        }
+                // fetch tile via pooled keep-alive connection, aborted if cancelled depending on the policy
+                TileHttpClient.Cancellable cancellable = cancelPolicy == CANCEL_ABORT ? request : null;
+                TileHttpClient.Response response = revalidate ? httpClient.get(tile.getUrl(), tile.getEtag(), tile.getLastModified(), cancellable) : httpClient.get(tile.getUrl(), null, null, cancellable);
+
+                // cached tile is still valid, only update its metadata
+                if (revalidate && response.getCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    if (response.getEtag() != null) {
+                        tile.setEtag(response.getEtag());
                     }
+                    if (response.getLastModified() != null) {
+                        tile.setLastModified(response.getLastModified());
+                    }
+                    tile.setFetchedAt(System.currentTimeMillis());
+                    tileWriter.writeValidation(tile);
+                    encodedTileCache.update(tile);
+                    handler.obtainMessage(REVALIDATED, request).sendToTarget();
+                    return true;
+                }
 
-                    inputStream.close();
-                    connection.disconnect();
+                if (response.getCode() == HttpURLConnection.HTTP_OK || response.getCode() == HttpURLConnection.HTTP_NO_CONTENT) {
 
-                    // convert image
-                    byte[] image = null;
-                    if (connection.getResponseCode() == HttpURLConnection.HTTP_OK) {
-                        buffer.flush();
-                        image = buffer.toByteArray();
-                        long startDecode = System.currentTimeMillis();
-                        Bitmap bitmap = BitmapFactory.decodeByteArray(image, 0, image.length);
-                        // Log.i(TAG, String.format("Decoded %d bytes in %d ms (%s)", image == null ? 0 : image.length, (System.currentTimeMillis() - startDecode), tile));
-                        if (bitmap != null) {
-                            tile.setBitmap(bitmap);
-                        }
+                    long now = System.currentTimeMillis();
+
+                    // nobody waits for a cancelled tile, persist it without decoding
+                    if (request.isCancelled()) {
+                        tile.setLastUsed(now);
+                        tile.setFetchedAt(now);
+                        tile.setEtag(response.getEtag());
+                        tile.setLastModified(response.getLastModified());
+                        tile.setOK();
+                        tileWriter.write(tile, response.getCode() == HttpURLConnection.HTTP_OK ? response.getBody() : null);
+                        persistedCancelledCount.incrementAndGet();
+                        return false;
                     }
 
-                    // Log.i(TAG, String.format("Downloaded %d bytes in %d ms (%s)", image == null ? 0 : image.length, (System.currentTimeMillis() - start), tile));
+                    // convert image if there is data
+                    byte[] image = null;
+                    Bitmap bitmap = null;
+                    if (response.getCode() == HttpURLConnection.HTTP_OK) {
+                        image = response.getBody();
+                        bitmap = TileDecoder.decode(image, tile.getLayer());
+                    }
+                    tile.setBitmap(bitmap);
 
                     // write tile to database
-                    tile.setLastUsed(System.currentTimeMillis());
+                    tile.setLastUsed(now);
+                    tile.setFetchedAt(now);
+                    tile.setEtag(response.getEtag());
+                    tile.setLastModified(response.getLastModified());
                     tile.setOK();
-                    handler.obtainMessage(LOADED_FROM_URL, tile).sendToTarget();
-                    insertOrUpdateTileBitmap(database, tile, image);
+                    handler.obtainMessage(LOADED_FROM_URL, request).sendToTarget();
+                    tileWriter.write(tile, image);
+                    encodedTileCache.put(tile, image);
                     return true;
                 }
 
+            } catch (TileHttpClient.CancelledException e) {
+                Log.i(TAG, "Download cancelled: " + tile);
+                return false;
             } catch (Exception e) {
                 Log.w(TAG, "Exception: " + e.getMessage(), e);
             }
 
+            // keep showing the cached tile if revalidation failed
+            if (revalidate) {
+                Log.i(TAG, "Revalidation failed: " + tile);
+                handler.obtainMessage(REVALIDATED, request).sendToTarget();
+                return false;
+            }
+
             // download failed
             tile.setFailed();
-            handler.obtainMessage(LOAD_FAILED, tile).sendToTarget();
+            handler.obtainMessage(LOAD_FAILED, request).sendToTarget();
 
             return false;
         }
-
-        private void insertOrUpdateTileBitmap(MapDatabase database, Tile tile, byte[] image) {
-
-            if (database.isTileExisting(tile)) {
-                database.updateBitmap(tile, image);
-            } else {
-                if (database.getTileCount() > MAX_NUMBER_OF_TILES) {
-                    database.deleteLeastRecentlyUsed(DELETE_CHUNK_SIZE);
-                }
-                database.insertTile(tile, image);
-            }
-        }
     }
 }
@@ -0,0 +1,116 @@
+package ch.trillian.dufour;
+
+import java.util.ArrayList;
+
+public class TileRequest implements TileHttpClient.Cancellable {
+
+    private final long key;
+
+    // the tile being loaded, its result is assigned to all waiting tiles
+    private final Tile tile;
+
+    // the tiles of the cache waiting for this request
+    private final ArrayList<Tile> waiters = new ArrayList<>();
+
+    private int priority;
+
+    // the position in a LoadQueue, the order of enqueuing and the distance to the focus in tiles
+    private int queueIndex = -1;
+    private long sequence;
+    private float distance;
+
+    // true if the tile has been loaded from DB and is being revalidated against the server
+    private boolean revalidating;
+
+    // the time the request has been created
+    private final long created = System.currentTimeMillis();
+
+    // true if no tile is waiting for this request anymore
+    private volatile boolean cancelled;
+
+    public TileRequest(Layer layer, int x, int y, int priority) {
+
+        this.key = Tile.key(layer, x, y);
+        this.tile = new Tile(layer, x, y);
+        this.priority = priority;
+
+        tile.setLoading();
+    }
+
+    public long getKey() {
+        return key;
+    }
+
+    public Tile getTile() {
+        return tile;
+    }
+
+    public ArrayList<Tile> getWaiters() {
+        return waiters;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    public int getQueueIndex() {
+        return queueIndex;
+    }
+
+    public void setQueueIndex(int queueIndex) {
+        this.queueIndex = queueIndex;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    public float getDistance() {
+        return distance;
+    }
+
+    // sets the squared distance in tiles from the tile's center to the given CH1903 coordinates
+    public void updateDistance(float ch1903X, float ch1903Y) {
+
+        Layer layer = tile.getLayer();
+        float tileMeterX = layer.getTileSizeX() * layer.getMeterPerPixel();
+        float tileMeterY = layer.getTileSizeY() * layer.getMeterPerPixel();
+        float dx = (layer.getLeft() + (tile.getX() + 0.5f) * tileMeterX - ch1903X) / tileMeterX;
+        float dy = (layer.getTop() - (tile.getY() + 0.5f) * tileMeterY - ch1903Y) / tileMeterY;
+
+        distance = dx * dx + dy * dy;
+    }
+
+    public long getCreated() {
+        return created;
+    }
+
+    public boolean isRevalidating() {
+        return revalidating;
+    }
+
+    public void setRevalidating(boolean revalidating) {
+        this.revalidating = revalidating;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public String toString() {
+
+        return tile.toString();
+    }
+}
@@ -0,0 +1,45 @@
+package ch.trillian.dufour;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.List;
+
+// the persistent storage of tile images, reads must be safe to call from several threads
+public interface TileStore {
+
+    interface TileImageConsumer {
+
+        void onTileImage(int x, int y, byte[] image);
+    }
+
+    interface TileConsumer {
+
+        // the tile's metadata has been read, the image is null for tiles stored without content
+        void onTile(Tile tile, ByteBuffer image);
+    }
+
+    // must be called by each thread before using the store
+    void openDatabase();
+
+    void closeDatabase();
+
+    // reads all given tiles of the same layer and passes the found ones with their images to the consumer, returns their number
+    int readTiles(Layer layer, List<Tile> tiles, TileConsumer consumer);
+
+    // returns the keys (x << 32 | y) of all tiles within the given range which are stored
+    HashSet<Long> readExistingTiles(Layer layer, int minX, int maxX, int minY, int maxY);
+
+    // passes the images of the tiles from minX to maxX of row y which are stored to the consumer, returns their number
+    int readTileImages(Layer layer, int minX, int maxX, int y, TileImageConsumer consumer);
+
+    // writes all tiles, existing tiles are replaced
+    void writeTiles(List<TileWriter.PendingWrite> writes);
+
+    // starts writing many batches, tiles written until endWrites() may not be readable before
+    void beginWrites();
+
+    // makes all tiles written since beginWrites() readable
+    void endWrites();
+
+    String getStatistics();
+}
@@ -6,26 +6,94 @@ import android.util.Log;
 public class TileTable {
 
     public static final String TABLE_NAME = "TILE";
-    public static final String COL_MAP_ID = "MAP_ID";
-    public static final String COL_LAYER_ID = "LAYER_ID";
-    public static final String COL_X = "X";
-    public static final String COL_Y = "Y";
+    public static final String COL_KEY = "TILE_KEY";
     public static final String COL_LAST_USED = "LAST_USED";
+    public static final String COL_SIZE = "SIZE";
+    public static final String COL_ETAG = "ETAG";
+    public static final String COL_LAST_MODIFIED = "LAST_MODIFIED";
+    public static final String COL_FETCHED_AT = "FETCHED_AT";
+    public static final String COL_IMAGE_ID = "IMAGE_ID";
+
+    // the pins of the tile (PIN_JOB, PIN_IMPORT) or 0, pinned tiles are not deleted to make room
+    public static final String COL_PINNED = "PINNED";
+
+    // the tile is within the region of a download job, cleared when the job is deleted
+    public static final int PIN_JOB = 1;
+
+    // the tile has been imported
+    public static final int PIN_IMPORT = 2;
+
+    // the image of version 7 and older, moved into ImageTable in chunks after open, null for tiles written since version 8
     public static final String COL_IMAGE = "IMAGE";
 
+    // the columns of version 5 and older, the map and layer are replaced by the layer's ID from LayerTable since version 6
+    private static final String COL_MAP_ID = "MAP_ID";
+    private static final String COL_LAYER_ID = "LAYER_ID";
+    private static final String COL_X = "X";
+    private static final String COL_Y = "Y";
+
+    // the bits of x and y within the key, tiles of the same row of a layer have consecutive keys
+    private static final int COORDINATE_BITS = 20;
+    private static final long COORDINATE_MASK = (1 << COORDINATE_BITS) - 1;
+
+    // the position of the layer's ID within the key
+    public static final int LAYER_SHIFT = 2 * COORDINATE_BITS;
+
     private static final String SQL_CREATE_TABLE = "CREATE TABLE "
             + TABLE_NAME
             + "("
-            + COL_MAP_ID + " TEXT NOT NULL, "
-            + COL_LAYER_ID + " TEXT NOT NULL, "
-            + COL_X + " INTEGER NOT NULL, "
-            + COL_Y + " INTEGER NOT NULL, "
+            + COL_KEY + " INTEGER PRIMARY KEY, "
             + COL_LAST_USED + " INTEGER NOT NULL, "
+            + COL_SIZE + " INTEGER NOT NULL DEFAULT 0, "
+            + COL_ETAG + " TEXT, "
+            + COL_LAST_MODIFIED + " TEXT, "
+            + COL_FETCHED_AT + " INTEGER NOT NULL DEFAULT 0, "
+            + COL_IMAGE_ID + " INTEGER, "
             + COL_IMAGE + " BLOB, "
-            + "PRIMARY KEY (" + COL_MAP_ID + ", " + COL_LAYER_ID + ", " + COL_X + ", " + COL_Y + ")"
+            + COL_PINNED + " INTEGER NOT NULL DEFAULT 0"
+            + ");";
+
+    // the table of versions 6 and 7, the image comes last so the other columns are read without its overflow pages
+    private static final String SQL_CREATE_TABLE_V7 = "CREATE TABLE "
+            + TABLE_NAME
+            + "("
+            + COL_KEY + " INTEGER PRIMARY KEY, "
+            + COL_LAST_USED + " INTEGER NOT NULL, "
+            + COL_SIZE + " INTEGER NOT NULL DEFAULT 0, "
+            + COL_ETAG + " TEXT, "
+            + COL_LAST_MODIFIED + " TEXT, "
+            + COL_FETCHED_AT + " INTEGER NOT NULL DEFAULT 0, "
+            + COL_IMAGE + " BLOB"
             + ");";
 
-    private static final String SQL_CREATE_INDEX = "CREATE INDEX " + TABLE_NAME + "_" + COL_LAST_USED + "_INDEX ON " + TABLE_NAME + "(" + COL_LAST_USED + ")";
+    // the columns of version 7
+    private static final String COLUMNS_V7 = COL_KEY + ", " + COL_LAST_USED + ", " + COL_SIZE + ", " + COL_ETAG + ", " + COL_LAST_MODIFIED + ", " + COL_FETCHED_AT + ", " + COL_IMAGE;
+
+    // the tiles which may be deleted by last-used time, pinned tiles are skipped without reading them
+    private static final String INDEX_NAME = TABLE_NAME + "_" + COL_PINNED + "_" + COL_LAST_USED + "_INDEX";
+
+    private static final String SQL_CREATE_INDEX = "CREATE INDEX " + INDEX_NAME + " ON " + TABLE_NAME + "(" + COL_PINNED + ", " + COL_LAST_USED + ")";
+
+    // the index of version 8 and older
+    private static final String INDEX_NAME_V8 = TABLE_NAME + "_" + COL_LAST_USED + "_INDEX";
+
+    private static final String SQL_CREATE_INDEX_V8 = "CREATE INDEX " + INDEX_NAME_V8 + " ON " + TABLE_NAME + "(" + COL_LAST_USED + ")";
+
+    // the key of a tile, the layer's ID comes from LayerTable
+    public static long key(long layerId, int x, int y) {
+
+        return (layerId << LAYER_SHIFT) | ((long) y << COORDINATE_BITS) | x;
+    }
+
+    public static int getX(long key) {
+
+        return (int) (key & COORDINATE_MASK);
+    }
+
+    public static int getY(long key) {
+
+        return (int) ((key >> COORDINATE_BITS) & COORDINATE_MASK);
+    }
 
     public static void onCreate(SQLiteDatabase database) {
 
@@ -33,10 +101,85 @@ public class TileTable {
         database.execSQL(SQL_CREATE_INDEX);
     }
 
+    // LayerTable and ImageTable must have been upgraded before
     public static void onUpgrade(SQLiteDatabase database, int oldVersion, int newVersion) {
 
-        Log.w(TileTable.class.getName(), "Upgrading table " + TABLE_NAME + " from version " + oldVersion + " to " + newVersion + ", which will destroy all old data.");
-        database.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME);
-        onCreate(database);
+        if (oldVersion < 3) {
+            Log.w(TileTable.class.getName(), "Upgrading table " + TABLE_NAME + " from version " + oldVersion + " to " + newVersion + ", which will destroy all old data.");
+            database.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME);
+            onCreate(database);
+            return;
+        }
+
+        if (oldVersion < 4) {
+            Log.w(TileTable.class.getName(), "Upgrading table " + TABLE_NAME + " from version " + oldVersion + " to 4, adding validators.");
+            database.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + COL_ETAG + " TEXT");
+            database.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + COL_LAST_MODIFIED + " TEXT");
+            database.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + COL_FETCHED_AT + " INTEGER NOT NULL DEFAULT 0");
+
+            // don't revalidate all existing tiles at once
+            database.execSQL("UPDATE " + TABLE_NAME + " SET " + COL_FETCHED_AT + " = " + COL_LAST_USED);
+        }
+
+        if (oldVersion < 6) {
+            Log.w(TileTable.class.getName(), "Upgrading table " + TABLE_NAME + " from version " + oldVersion + " to 7, keying tiles by integer.");
+
+            long start = System.currentTimeMillis();
+
+            String oldTable = TABLE_NAME + "_V5";
+            database.execSQL("ALTER TABLE " + TABLE_NAME + " RENAME TO " + oldTable);
+            database.execSQL("DROP INDEX IF EXISTS " + INDEX_NAME_V8);
+            database.execSQL(SQL_CREATE_TABLE_V7);
+            database.execSQL(SQL_CREATE_INDEX_V8);
+
+            // one ID per map and layer
+            database.execSQL("INSERT INTO " + LayerTable.TABLE_NAME + " (" + LayerTable.COL_MAP_ID + ", " + LayerTable.COL_LAYER_ID + ") SELECT DISTINCT " + COL_MAP_ID + ", " + COL_LAYER_ID + " FROM " + oldTable);
+
+            // copy the tiles, the key is computed the same way as by key()
+            database.execSQL("INSERT INTO " + TABLE_NAME + " (" + COLUMNS_V7 + ")"
+                    + " SELECT (L." + LayerTable.COL_ID + " << " + LAYER_SHIFT + ") | (T." + COL_Y + " << " + COORDINATE_BITS + ") | T." + COL_X + ", T." + COL_LAST_USED + ", IFNULL(LENGTH(T." + COL_IMAGE + "), 0), T." + COL_ETAG + ", T." + COL_LAST_MODIFIED + ", T." + COL_FETCHED_AT + ", T." + COL_IMAGE
+                    + " FROM " + oldTable + " T JOIN " + LayerTable.TABLE_NAME + " L ON L." + LayerTable.COL_MAP_ID + " = T." + COL_MAP_ID + " AND L." + LayerTable.COL_LAYER_ID + " = T." + COL_LAYER_ID);
+
+            database.execSQL("DROP TABLE " + oldTable);
+
+            Log.i(TileTable.class.getName(), String.format("Upgraded table %s in %d ms", TABLE_NAME, (System.currentTimeMillis() - start)));
+
+        } else if (oldVersion < 7) {
+            Log.w(TileTable.class.getName(), "Upgrading table " + TABLE_NAME + " from version " + oldVersion + " to 7, adding sizes.");
+
+            long start = System.currentTimeMillis();
+
+            String oldTable = TABLE_NAME + "_V6";
+            database.execSQL("ALTER TABLE " + TABLE_NAME + " RENAME TO " + oldTable);
+            database.execSQL("DROP INDEX IF EXISTS " + INDEX_NAME_V8);
+            database.execSQL(SQL_CREATE_TABLE_V7);
+            database.execSQL(SQL_CREATE_INDEX_V8);
+
+            database.execSQL("INSERT INTO " + TABLE_NAME + " (" + COLUMNS_V7 + ")"
+                    + " SELECT " + COL_KEY + ", " + COL_LAST_USED + ", IFNULL(LENGTH(" + COL_IMAGE + "), 0), " + COL_ETAG + ", " + COL_LAST_MODIFIED + ", " + COL_FETCHED_AT + ", " + COL_IMAGE
+                    + " FROM " + oldTable);
+
+            database.execSQL("DROP TABLE " + oldTable);
+
+            Log.i(TileTable.class.getName(), String.format("Upgraded table %s in %d ms", TABLE_NAME, (System.currentTimeMillis() - start)));
+        }
+
+        if (oldVersion < 7) {
+            LayerTable.updateUsage(database);
+        }
+
+        // the images are moved by MapDatabase.migrateImages() after open, a single transaction would block the first start
+        // for minutes and need the size of the images again for its journal
+        if (oldVersion < 8) {
+            Log.w(TileTable.class.getName(), "Upgrading table " + TABLE_NAME + " from version " + oldVersion + " to 8, adding image IDs.");
+            database.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + COL_IMAGE_ID + " INTEGER");
+        }
+
+        if (oldVersion < 9) {
+            Log.w(TileTable.class.getName(), "Upgrading table " + TABLE_NAME + " from version " + oldVersion + " to 9, pinning the tiles of download jobs.");
+            database.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + COL_PINNED + " INTEGER NOT NULL DEFAULT 0");
+            database.execSQL("DROP INDEX IF EXISTS " + INDEX_NAME_V8);
+            database.execSQL(SQL_CREATE_INDEX);
+        }
     }
 }
@@ -0,0 +1,264 @@
+package ch.trillian.dufour;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+public class TileWriter implements Runnable {
+
+    private static final String TAG = "WRITER";
+
+    // the number of pending writes which triggers a flush
+    private static final int FLUSH_SIZE = 32;
+
+    // the maximum number of milliseconds a write stays pending
+    private static final int FLUSH_INTERVAL = 2000;
+
+    // the maximum number of milliseconds a last-used time stays in memory only
+    private static final int TOUCH_FLUSH_INTERVAL = 30000;
+
+    private boolean flush;
+    private boolean destroy;
+    private Thread thread;
+
+    // the pending writes by tile key, a later write of the same tile replaces the earlier one
+    private final LinkedHashMap<Long, PendingWrite> pending = new LinkedHashMap<>();
+
+    // the time the oldest pending write has been added
+    private long firstPendingAt;
+
+    // true if there are last-used times recorded since they have been written, and the time of the first one
+    private boolean touched;
+    private long firstTouchedAt;
+
+    // true once there are no more images written before version 8 to be moved into ImageTable
+    private boolean migrated;
+
+    public static class PendingWrite {
+
+        private final Tile tile;
+        private final byte[] image;
+        private final boolean imageWrite;
+        private final int pins;
+
+        public PendingWrite(Tile source, byte[] image, boolean imageWrite) {
+
+            this(source, image, imageWrite, 0);
+        }
+
+        public PendingWrite(Tile source, byte[] image, boolean imageWrite, int pins) {
+
+            // copy the tile's state without holding its bitmap
+            this.tile = new Tile(source.getLayer(), source.getX(), source.getY());
+            this.tile.assign(source);
+            this.tile.setBitmap(null);
+            this.image = image;
+            this.imageWrite = imageWrite;
+            this.pins = pins;
+        }
+
+        public Tile getTile() {
+            return tile;
+        }
+
+        public byte[] getImage() {
+            return image;
+        }
+
+        // true if the image has to be written, false if only the validators changed
+        public boolean isImageWrite() {
+            return imageWrite;
+        }
+
+        // the pins (TileTable.PIN_JOB, PIN_IMPORT) added to the tile's, which keep it from being deleted to make room
+        public int getPins() {
+            return pins;
+        }
+    }
+
+    public TileWriter() {
+
+        thread = new Thread(this, "WriterThread");
+        thread.start();
+    }
+
+    public void onDestroy() {
+
+        synchronized (this) {
+            destroy = true;
+            this.notify();
+        }
+    }
+
+    // writes all pending tiles as soon as possible
+    public void flush() {
+
+        synchronized (this) {
+            flush = true;
+            this.notify();
+        }
+    }
+
+    public void write(Tile tile, byte[] image) {
+
+        add(new PendingWrite(tile, image, true));
+    }
+
+    public void writeValidation(Tile tile) {
+
+        synchronized (this) {
+
+            // keep the image of a pending write of the same tile
+            PendingWrite previous = pending.get(tile.getKey());
+            if (previous != null && previous.isImageWrite()) {
+                add(new PendingWrite(tile, previous.getImage(), true, previous.getPins()));
+            } else {
+                add(new PendingWrite(tile, null, false));
+            }
+        }
+    }
+
+    // records the tile's last-used time, it is written to DB with other ones later
+    public void touch(Tile tile) {
+
+        MapDatabase.getInstance().touch(tile);
+
+        synchronized (this) {
+            if (!touched) {
+                touched = true;
+                firstTouchedAt = System.currentTimeMillis();
+                this.notify();
+            }
+        }
+    }
+
+    public PendingWrite getPending(Tile tile) {
+
+        synchronized (this) {
+            return pending.get(tile.getKey());
+        }
+    }
+
+    private void add(PendingWrite write) {
+
+        synchronized (this) {
+
+            if (pending.isEmpty()) {
+                firstPendingAt = System.currentTimeMillis();
+            }
+
+            long key = write.getTile().getKey();
+            pending.remove(key);
+            pending.put(key, write);
+
+            if (pending.size() == 1 || pending.size() >= FLUSH_SIZE) {
+                this.notify();
+            }
+        }
+    }
+
+    public void run() {
+
+        Log.i(TAG, "WriterThread started.");
+
+        MapDatabase database = MapDatabase.getInstance();
+
+        try {
+
+            database.openDatabase();
+
+            while (true) {
+
+                ArrayList<PendingWrite> writes = null;
+                boolean writeLastUsed = false;
+                boolean migrate = false;
+
+                synchronized (this) {
+
+                    if (pending.isEmpty() && !touched) {
+                        flush = false;
+                        if (destroy) {
+                            break;
+                        }
+                        if (migrated) {
+                            this.wait();
+                            continue;
+                        }
+                        migrate = true;
+                    }
+                }
+
+                // move the images written before version 8 while idle, one chunk at a time between the writes
+                if (migrate) {
+                    try {
+                        migrated = !database.migrateImages();
+                    } catch (RuntimeException e) {
+                        Log.w(TAG, "Can't move images: " + e.getMessage(), e);
+                        migrated = true;
+                    }
+                    continue;
+                }
+
+                synchronized (this) {
+
+                    // wait for more writes and last-used times to group into one transaction
+                    long now = System.currentTimeMillis();
+                    long writeDelay = pending.isEmpty() ? Long.MAX_VALUE : firstPendingAt + FLUSH_INTERVAL - now;
+                    long touchDelay = touched ? firstTouchedAt + TOUCH_FLUSH_INTERVAL - now : Long.MAX_VALUE;
+                    boolean immediately = flush || destroy;
+                    if (!immediately && pending.size() < FLUSH_SIZE && writeDelay > 0 && touchDelay > 0) {
+                        this.wait(Math.min(writeDelay, touchDelay));
+                        continue;
+                    }
+
+                    if (!pending.isEmpty() && (immediately || pending.size() >= FLUSH_SIZE || writeDelay <= 0)) {
+                        writes = new ArrayList<>(pending.values());
+                    }
+
+                    if (touched && (immediately || touchDelay <= 0)) {
+                        writeLastUsed = true;
+                        touched = false;
+                    }
+                }
+
+                // a failed write is logged and dropped, the tiles are downloaded again when needed
+                if (writeLastUsed) {
+                    try {
+                        database.writeLastUsed();
+                    } catch (RuntimeException e) {
+                        Log.w(TAG, "Can't write last-used times: " + e.getMessage(), e);
+                    }
+                }
+
+                if (writes == null) {
+                    continue;
+                }
+
+                try {
+                    database.writeTiles(writes);
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Can't write " + writes.size() + " tiles: " + e.getMessage(), e);
+                }
+
+                // remove written tiles unless they have been written again in the meantime
+                synchronized (this) {
+                    for (PendingWrite write : writes) {
+                        long key = write.getTile().getKey();
+                        if (pending.get(key) == write) {
+                            pending.remove(key);
+                        }
+                    }
+                    firstPendingAt = System.currentTimeMillis();
+                }
+            }
+
+        } catch (InterruptedException e) {
+            Log.w(TAG, "WriterThread has been interrupted.");
+        }
+
+        database.closeDatabase();
+
+        Log.i(TAG, "WriterThread has been shut down.");
+    }
+}
@@ -0,0 +1,189 @@
+package ch.trillian.dufour;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class LoadQueueTest {
+
+    private static final String URL_FORMAT = "https://tiles.example.com/%1$s/%2$d/%3$d.jpeg";
+
+    // 8x5 tiles of 64 km
+    private Layer layer;
+
+    private LoadQueue queue;
+
+    @Before
+    public void setUp() {
+
+        layer = new Layer("CH16", "16", URL_FORMAT, 420000f, 350000f, 250f, 256, 256, 0, 0, 7, 4);
+        new Map("CH", new Layer[]{layer}, 0.5f, 2f, 0.5f, 2f);
+
+        queue = new LoadQueue();
+    }
+
+    @Test
+    public void pollsHighPriorityFirst() {
+
+        TileRequest low = offer(0, 0, TileLoader.PRIORITY_LOW);
+        TileRequest high = offer(1, 0, TileLoader.PRIORITY_HIGH);
+
+        assertSame(high, queue.poll());
+        assertSame(low, queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void pollsInOrderOfOfferWithinPriority() {
+
+        TileRequest first = offer(0, 0, TileLoader.PRIORITY_LOW);
+        TileRequest second = offer(1, 0, TileLoader.PRIORITY_LOW);
+        TileRequest third = offer(2, 0, TileLoader.PRIORITY_LOW);
+
+        assertSame(first, queue.poll());
+        assertSame(second, queue.poll());
+        assertSame(third, queue.poll());
+    }
+
+    @Test
+    public void pollsNearestToFocusFirstWithinPriority() {
+
+        TileRequest far = offer(0, 0, TileLoader.PRIORITY_HIGH);
+        TileRequest near = offer(6, 3, TileLoader.PRIORITY_HIGH);
+        TileRequest low = offer(7, 4, TileLoader.PRIORITY_LOW);
+
+        // the center of tile (7, 4)
+        queue.setFocus(420000f + 7.5f * 64000f, 350000f - 4.5f * 64000f);
+
+        assertSame(near, queue.poll());
+        assertSame(far, queue.poll());
+        assertSame(low, queue.poll());
+    }
+
+    @Test
+    public void updateMovesReprioritisedRequestUp() {
+
+        ArrayList<TileRequest> requests = new ArrayList<>();
+        for (int x = 0; x < 8; x++) {
+            requests.add(offer(x, 0, TileLoader.PRIORITY_LOW));
+        }
+
+        // the last preloaded tile becomes visible
+        TileRequest visible = requests.get(7);
+        visible.setPriority(TileLoader.PRIORITY_HIGH);
+        queue.update(visible);
+
+        assertSame(visible, queue.poll());
+        for (int i = 0; i < 7; i++) {
+            assertSame(requests.get(i), queue.poll());
+        }
+    }
+
+    @Test
+    public void updateMovesReprioritisedRequestDown() {
+
+        ArrayList<TileRequest> requests = new ArrayList<>();
+        for (int x = 0; x < 8; x++) {
+            requests.add(offer(x, 0, TileLoader.PRIORITY_HIGH));
+        }
+
+        // the first visible tile leaves the screen but stays within the preload region
+        TileRequest preloaded = requests.get(0);
+        preloaded.setPriority(TileLoader.PRIORITY_LOW);
+        queue.update(preloaded);
+
+        for (int i = 1; i < 8; i++) {
+            assertSame(requests.get(i), queue.poll());
+        }
+        assertSame(preloaded, queue.poll());
+    }
+
+    @Test
+    public void removeKeepsOrderOfRemainingRequests() {
+
+        ArrayList<TileRequest> requests = new ArrayList<>();
+        for (int x = 0; x < 8; x++) {
+            requests.add(offer(x, 1, x % 2 == 0 ? TileLoader.PRIORITY_HIGH : TileLoader.PRIORITY_LOW));
+        }
+
+        TileRequest cancelled = requests.get(2);
+        assertTrue(queue.remove(cancelled));
+        assertFalse(queue.contains(cancelled));
+        assertFalse(queue.remove(cancelled));
+        assertEquals(-1, cancelled.getQueueIndex());
+
+        int[] expected = {0, 4, 6, 1, 3, 5, 7};
+        for (int index : expected) {
+            assertSame(requests.get(index), queue.poll());
+        }
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void updateIgnoresRequestNotQueued() {
+
+        TileRequest queued = offer(0, 0, TileLoader.PRIORITY_LOW);
+        TileRequest polled = offer(1, 0, TileLoader.PRIORITY_HIGH);
+        assertSame(polled, queue.poll());
+
+        polled.setPriority(TileLoader.PRIORITY_HIGH);
+        queue.update(polled);
+
+        assertEquals(1, queue.size());
+        assertSame(queued, queue.peek());
+    }
+
+    @Test
+    public void keepsOrderUnderRandomChanges() {
+
+        Random random = new Random(1903);
+        ArrayList<TileRequest> queued = new ArrayList<>();
+
+        for (int i = 0; i < 2000; i++) {
+
+            int operation = random.nextInt(4);
+            if (operation == 0 || queued.isEmpty()) {
+                queued.add(offer(random.nextInt(8), random.nextInt(5), random.nextInt(2)));
+            } else if (operation == 1) {
+                TileRequest request = queued.get(random.nextInt(queued.size()));
+                request.setPriority(1 - request.getPriority());
+                queue.update(request);
+            } else if (operation == 2) {
+                assertTrue(queue.remove(queued.remove(random.nextInt(queued.size()))));
+            } else {
+                queue.setFocus(420000f + random.nextFloat() * 512000f, 350000f - random.nextFloat() * 320000f);
+            }
+        }
+
+        Collections.sort(queued, new Comparator<TileRequest>() {
+
+            @Override
+            public int compare(TileRequest a, TileRequest b) {
+                return LoadQueue.compare(a, b);
+            }
+        });
+
+        assertEquals(queued.size(), queue.size());
+        for (TileRequest request : queued) {
+            assertSame(request, queue.poll());
+        }
+    }
+
+    private TileRequest offer(int x, int y, int priority) {
+
+        TileRequest request = new TileRequest(layer, x, y, priority);
+        queue.offer(request);
+
+        return request;
+    }
+}
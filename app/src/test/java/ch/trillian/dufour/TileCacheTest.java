@@ -0,0 +1,288 @@
+package ch.trillian.dufour;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+// the cache needs the framework's LruCache, which android.jar only stubs
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class TileCacheTest {
+
+    private static final String URL_FORMAT = "https://tiles.example.com/%1$s/%2$d/%3$d.jpeg";
+
+    private Layer layer;
+    private Layer layerIn;
+
+    private TileCache cache;
+    private TileCache.CacheListener cacheListener;
+
+    // the load latency reported to the cache, which preloads ahead of the motion if not 0
+    private long loadLatency;
+
+    // the tiles ordered and cancelled since the last reset, an order moving a tile up is recorded again
+    private final ArrayList<Long> orders = new ArrayList<>();
+    private final HashMap<Long, Integer> priorities = new HashMap<>();
+    private final HashSet<Long> cancels = new HashSet<>();
+
+    @Before
+    public void setUp() {
+
+        layer = new Layer("CH19", "19", URL_FORMAT, 420000f, 350000f, 20f, 256, 256, 0, 0, 93, 62);
+        layerIn = new Layer("CH20", "20", URL_FORMAT, 420000f, 350000f, 10f, 256, 256, 0, 0, 187, 124);
+        new Map("CH", new Layer[]{layer, layerIn}, 0.5f, 2f, 0.5f, 2f);
+
+        cacheListener = new TileCache.CacheListener() {
+
+            @Override
+            public void onOrderLoadTile(Tile tile, int priority) {
+                orders.add(tile.getKey());
+                priorities.put(tile.getKey(), priority);
+            }
+
+            @Override
+            public void onCancelLoadTile(Tile tile) {
+                assertTrue("Cancelled twice: " + tile, cancels.add(tile.getKey()));
+            }
+
+            @Override
+            public void onFocusChanged(float ch1903X, float ch1903Y) {
+            }
+
+            @Override
+            public long getLoadLatency() {
+                return loadLatency;
+            }
+        };
+
+        cache = new TileCache(64 * 1024 * 1024);
+        cache.setCacheListener(cacheListener);
+    }
+
+    @Test
+    public void ordersVisibleTilesHighAndPreloadRingLow() {
+
+        preload(layer, 10, 13, 20, 22);
+
+        assertOrdered(keys(layer, 10, 13, 20, 22), TileLoader.PRIORITY_HIGH);
+        assertOrdered(ring(layer, 10, 13, 20, 22), TileLoader.PRIORITY_LOW);
+        assertEquals(30, orders.size());
+        assertTrue(cancels.isEmpty());
+    }
+
+    @Test
+    public void panByOneColumnCancelsTheColumnLeavingThePreloadRegion() {
+
+        preload(layer, 10, 13, 20, 22);
+        reset();
+
+        preload(layer, 11, 14, 20, 22);
+
+        assertEquals(keys(layer, 9, 9, 19, 23), cancels);
+
+        // the preloaded column becoming visible is moved up, the column entering the preload region is ordered
+        assertOrdered(keys(layer, 14, 14, 20, 22), TileLoader.PRIORITY_HIGH);
+        assertOrdered(keys(layer, 15, 15, 19, 23), TileLoader.PRIORITY_LOW);
+        assertEquals(8, orders.size());
+
+        // the cancelled tiles have been removed, so they are ordered again when coming back
+        assertNull(cache.peekTile(layer, 9, 21));
+    }
+
+    @Test
+    public void panDiagonallyCancelsTheColumnAndTheRowLeavingThePreloadRegion() {
+
+        preload(layer, 10, 13, 20, 22);
+        reset();
+
+        preload(layer, 11, 14, 21, 23);
+
+        HashSet<Long> expected = keys(layer, 9, 9, 19, 23);
+        expected.addAll(keys(layer, 10, 14, 19, 19));
+        assertEquals(expected, cancels);
+
+        HashSet<Long> visible = keys(layer, 14, 14, 21, 23);
+        visible.addAll(keys(layer, 11, 13, 23, 23));
+        assertOrdered(visible, TileLoader.PRIORITY_HIGH);
+
+        HashSet<Long> preloaded = keys(layer, 15, 15, 20, 24);
+        preloaded.addAll(keys(layer, 10, 14, 24, 24));
+        assertOrdered(preloaded, TileLoader.PRIORITY_LOW);
+
+        assertEquals(visible.size() + preloaded.size(), orders.size());
+    }
+
+    @Test
+    public void panKeepsLoadedTilesLeavingThePreloadRegion() {
+
+        preload(layer, 10, 13, 20, 22);
+        for (int y = 19; y <= 23; y += 2) {
+            cache.peekTile(layer, 9, y).setOK();
+        }
+        reset();
+
+        preload(layer, 11, 14, 20, 22);
+
+        assertEquals(keys(layer, 9, 9, 20, 20, 22, 22), cancels);
+        assertNotNull(cache.peekTile(layer, 9, 19));
+        assertNotNull(cache.peekTile(layer, 9, 21));
+        assertNull(cache.peekTile(layer, 9, 20));
+    }
+
+    @Test
+    public void panWithinTheVisibleRegionOrdersNothing() {
+
+        preload(layer, 10, 13, 20, 22);
+        reset();
+
+        preload(layer, 10, 13, 20, 22);
+
+        assertTrue(orders.isEmpty());
+        assertTrue(cancels.isEmpty());
+    }
+
+    @Test
+    public void layerChangeCancelsAllLoadingTilesOfTheOldLayer() {
+
+        preload(layer, 10, 13, 20, 22);
+        reset();
+
+        preload(layerIn, 22, 25, 41, 43);
+
+        HashSet<Long> expected = keys(layer, 10, 13, 20, 22);
+        expected.addAll(ring(layer, 10, 13, 20, 22));
+        assertEquals(expected, cancels);
+
+        assertOrdered(keys(layerIn, 22, 25, 41, 43), TileLoader.PRIORITY_HIGH);
+        assertOrdered(ring(layerIn, 22, 25, 41, 43), TileLoader.PRIORITY_LOW);
+        assertEquals(30, orders.size());
+    }
+
+    @Test
+    public void rotationKeepsTheTilesStillVisible() {
+
+        // portrait, all tiles loaded
+        preload(layer, 10, 13, 18, 25);
+        HashMap<Long, Tile> resident = new HashMap<>();
+        for (int y = 17; y <= 26; y++) {
+            for (int x = 9; x <= 14; x++) {
+                Tile tile = cache.peekTile(layer, x, y);
+                tile.setOK();
+                resident.put(tile.getKey(), tile);
+            }
+        }
+        reset();
+
+        // landscape around the same center
+        preload(layer, 8, 15, 20, 23);
+
+        // none of the resident tiles is loaded again
+        for (long key : orders) {
+            assertFalse("Loaded again: " + key, resident.containsKey(key));
+        }
+        assertTrue(cancels.isEmpty());
+
+        for (int y = 20; y <= 23; y++) {
+            for (int x = 10; x <= 13; x++) {
+                assertSame(resident.get(Tile.key(layer, x, y)), cache.peekTile(layer, x, y));
+            }
+        }
+
+        // only the tiles entering at the sides are ordered
+        HashSet<Long> expected = keys(layer, 7, 9, 19, 24);
+        expected.addAll(keys(layer, 14, 16, 19, 24));
+        expected.removeAll(resident.keySet());
+        assertEquals(expected, new HashSet<>(orders));
+        assertEquals(expected.size(), orders.size());
+    }
+
+    @Test
+    public void growsForAFlingAndShrinksBackToTheBudget() {
+
+        int budget = 100 * layer.getTileByteCount();
+        cache = new TileCache(budget);
+        cache.setCacheListener(cacheListener);
+
+        preload(layer, 10, 13, 20, 22);
+        assertEquals(budget, cache.getMaxBytes());
+
+        // 4 tiles ahead in both directions
+        loadLatency = 1000;
+        cache.preloadRegion(layer, 10, 13, 20, 22, 4 * 5120f, 4 * 5120f);
+        assertTrue(cache.getMaxBytes() > budget);
+
+        cache.preloadRegion(layer, 10, 13, 20, 22, 0, 0);
+        assertEquals(budget, cache.getMaxBytes());
+    }
+
+    @Test
+    public void growsAtMostToTwiceTheBudget() {
+
+        int budget = 40 * layer.getTileByteCount();
+        cache = new TileCache(budget);
+        cache.setCacheListener(cacheListener);
+
+        loadLatency = 1000;
+        cache.preloadRegion(layer, 10, 13, 20, 22, 4 * 5120f, 4 * 5120f);
+
+        assertEquals(2 * budget, cache.getMaxBytes());
+    }
+
+    private void preload(Layer layer, int minTileX, int maxTileX, int minTileY, int maxTileY) {
+
+        cache.preloadRegion(layer, minTileX, maxTileX, minTileY, maxTileY, 0, 0);
+    }
+
+    private void reset() {
+
+        orders.clear();
+        priorities.clear();
+        cancels.clear();
+    }
+
+    private void assertOrdered(HashSet<Long> keys, int priority) {
+
+        for (long key : keys) {
+            assertTrue("Not ordered: " + key, orders.contains(key));
+            assertEquals(priority, (int) priorities.get(key));
+        }
+    }
+
+    // the keys of the tiles within the given ranges of x and y, given as pairs of minimum and maximum
+    private static HashSet<Long> keys(Layer layer, int minX, int maxX, int... rangesY) {
+
+        HashSet<Long> keys = new HashSet<>();
+        for (int i = 0; i < rangesY.length; i += 2) {
+            for (int y = rangesY[i]; y <= rangesY[i + 1]; y++) {
+                for (int x = minX; x <= maxX; x++) {
+                    keys.add(Tile.key(layer, x, y));
+                }
+            }
+        }
+
+        return keys;
+    }
+
+    // the keys of the tiles preloaded around the given region
+    private static HashSet<Long> ring(Layer layer, int minX, int maxX, int minY, int maxY) {
+
+        int size = TileCache.PRELOAD_SIZE;
+        HashSet<Long> keys = keys(layer, minX - size, maxX + size, minY - size, maxY + size);
+        keys.removeAll(keys(layer, minX, maxX, minY, maxY));
+
+        return keys;
+    }
+}
@@ -0,0 +1,207 @@
+package ch.trillian.dufour;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+// runs the client against a local stand-in for the tile server, which answers after a fixed latency
+public class TileHttpClientTest {
+
+    // the latency of the stand-in server per tile
+    private static final int LATENCY = 20;
+
+    // the number of tiles of a 1440p screen at 256 pixels per tile
+    private static final int SCREEN_TILES = 60;
+
+    private static final String ETAG = "\"1903\"";
+
+    private static final byte[] IMAGE = new byte[8192];
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private String baseUrl;
+
+    // the client ports of the connections the server has seen
+    private final Set<Integer> connections = Collections.synchronizedSet(new HashSet<Integer>());
+
+    @Before
+    public void setUp() throws IOException {
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+
+                connections.add(exchange.getRemoteAddress().getPort());
+
+                try {
+                    Thread.sleep(LATENCY);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+
+                String path = exchange.getRequestURI().getPath();
+                if (path.startsWith("/empty")) {
+                    exchange.sendResponseHeaders(HttpURLConnection.HTTP_NO_CONTENT, -1);
+                } else if (ETAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    exchange.getResponseHeaders().add("ETag", ETAG);
+                    exchange.sendResponseHeaders(HttpURLConnection.HTTP_NOT_MODIFIED, -1);
+                } else {
+                    exchange.getResponseHeaders().add("ETag", ETAG);
+                    exchange.getResponseHeaders().add("Last-Modified", "Sat, 01 Jan 2000 00:00:00 GMT");
+                    exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, IMAGE.length);
+                    try (OutputStream body = exchange.getResponseBody()) {
+                        body.write(IMAGE);
+                    }
+                }
+                exchange.close();
+            }
+        });
+        serverExecutor = Executors.newCachedThreadPool();
+        server.setExecutor(serverExecutor);
+        server.start();
+
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void tearDown() {
+
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    @Test
+    public void returnsTheImageAndItsValidators() throws IOException {
+
+        TileHttpClient.Response response = new TileHttpClient(4).get(baseUrl + "/25/1/1.jpeg");
+
+        assertEquals(HttpURLConnection.HTTP_OK, response.getCode());
+        assertArrayEquals(IMAGE, response.getBody());
+        assertEquals(ETAG, response.getEtag());
+        assertEquals("Sat, 01 Jan 2000 00:00:00 GMT", response.getLastModified());
+    }
+
+    @Test
+    public void returnsNoContentWithoutImage() throws IOException {
+
+        TileHttpClient.Response response = new TileHttpClient(4).get(baseUrl + "/empty/1/1.jpeg");
+
+        assertEquals(HttpURLConnection.HTTP_NO_CONTENT, response.getCode());
+        assertTrue(response.getBody() == null || response.getBody().length == 0);
+    }
+
+    @Test
+    public void returnsNotModifiedForValidValidators() throws IOException {
+
+        TileHttpClient.Response response = new TileHttpClient(4).get(baseUrl + "/25/1/1.jpeg", ETAG, null);
+
+        assertEquals(HttpURLConnection.HTTP_NOT_MODIFIED, response.getCode());
+        assertTrue(response.getBody() == null || response.getBody().length == 0);
+    }
+
+    @Test
+    public void doesNotRequestCancelledTiles() throws IOException {
+
+        TileHttpClient client = new TileHttpClient(4);
+
+        try {
+            client.get(baseUrl + "/25/1/1.jpeg", null, null, new TileHttpClient.Cancellable() {
+
+                @Override
+                public boolean isCancelled() {
+                    return true;
+                }
+            });
+            fail("Not cancelled");
+        } catch (TileHttpClient.CancelledException e) {
+            // expected
+        }
+
+        assertEquals(0, client.getRequestCount());
+        assertEquals(1, client.getAbortedCount());
+        assertTrue(connections.isEmpty());
+    }
+
+    @Test
+    public void reusesConnectionsOfSerialDownloads() throws Exception {
+
+        fill(new TileHttpClient(1), 1);
+
+        assertEquals(1, connections.size());
+    }
+
+    @Test
+    public void fillsTheScreenFasterWithMoreWorkers() throws Exception {
+
+        long serial = fill(new TileHttpClient(1), 1);
+        long four = fill(new TileHttpClient(4), 4);
+        long eight = fill(new TileHttpClient(8), 8);
+
+        System.out.println(String.format("Filled %d tiles with %d ms latency: 1 worker %d ms, 4 workers %d ms, 8 workers %d ms", SCREEN_TILES, LATENCY, serial, four, eight));
+
+        // the serial fill takes at least the sum of the latencies, the parallel ones wait for the slowest worker only
+        assertTrue(serial >= SCREEN_TILES * LATENCY);
+        assertTrue("4 workers: " + four + " ms", four * 2 < serial);
+        assertTrue("8 workers: " + eight + " ms", eight * 3 < serial);
+    }
+
+    // downloads the tiles of a screen with the given number of workers and returns the time it took
+    private long fill(final TileHttpClient client, int workers) throws InterruptedException {
+
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+
+        long start = System.currentTimeMillis();
+
+        Thread[] threads = new Thread[workers];
+        for (int i = 0; i < workers; i++) {
+            threads[i] = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+
+                    int tile;
+                    while ((tile = next.getAndIncrement()) < SCREEN_TILES) {
+                        try {
+                            if (client.get(baseUrl + "/25/" + tile % 10 + "/" + tile / 10 + ".jpeg").getCode() != HttpURLConnection.HTTP_OK) {
+                                failed.incrementAndGet();
+                            }
+                        } catch (IOException e) {
+                            failed.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(0, failed.get());
+
+        return System.currentTimeMillis() - start;
+    }
+}
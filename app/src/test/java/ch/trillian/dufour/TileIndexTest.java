@@ -0,0 +1,142 @@
+package ch.trillian.dufour;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TileIndexTest {
+
+    private TileIndex index;
+
+    @Before
+    public void setUp() {
+
+        index = new TileIndex();
+    }
+
+    @Test
+    public void containsAddedTilesOnly() {
+
+        index.add(TileTable.key(1, 3, 5));
+
+        assertTrue(index.contains(TileTable.key(1, 3, 5)));
+        assertFalse(index.contains(TileTable.key(1, 4, 5)));
+        assertFalse(index.contains(TileTable.key(1, 3, 4)));
+        assertFalse(index.contains(TileTable.key(1, 3, 6)));
+        assertFalse(index.contains(TileTable.key(2, 3, 5)));
+    }
+
+    @Test
+    public void keepsLayersApart() {
+
+        index.add(TileTable.key(1, 7, 9));
+        index.add(TileTable.key(2, 9, 7));
+
+        assertTrue(index.contains(TileTable.key(1, 7, 9)));
+        assertTrue(index.contains(TileTable.key(2, 9, 7)));
+        assertFalse(index.contains(TileTable.key(1, 9, 7)));
+        assertFalse(index.contains(TileTable.key(2, 7, 9)));
+    }
+
+    @Test
+    public void containsTilesAtTheLimitsOfTheKey() {
+
+        int max = (1 << 20) - 1;
+
+        index.add(TileTable.key(1, 0, 0));
+        index.add(TileTable.key(1, max, 0));
+        index.add(TileTable.key(1, 0, 3749));
+        index.add(TileTable.key(1000, 3749, 2499));
+
+        assertTrue(index.contains(TileTable.key(1, 0, 0)));
+        assertTrue(index.contains(TileTable.key(1, max, 0)));
+        assertTrue(index.contains(TileTable.key(1, 0, 3749)));
+        assertTrue(index.contains(TileTable.key(1000, 3749, 2499)));
+        assertFalse(index.contains(TileTable.key(1, max - 1, 0)));
+        assertFalse(index.contains(TileTable.key(1000, 2499, 3749)));
+    }
+
+    @Test
+    public void removeForgetsTheTile() {
+
+        index.add(TileTable.key(1, 3, 5));
+        index.add(TileTable.key(1, 4, 5));
+
+        index.remove(TileTable.key(1, 3, 5));
+
+        assertFalse(index.contains(TileTable.key(1, 3, 5)));
+        assertTrue(index.contains(TileTable.key(1, 4, 5)));
+    }
+
+    @Test
+    public void removeIgnoresTilesNotAdded() {
+
+        index.add(TileTable.key(1, 3, 5));
+
+        index.remove(TileTable.key(1, 3, 6));
+        index.remove(TileTable.key(1, 3, 500));
+        index.remove(TileTable.key(2, 3, 5));
+
+        assertTrue(index.contains(TileTable.key(1, 3, 5)));
+        assertTrue(index.getStatistics().startsWith("tiles=1,"));
+    }
+
+    @Test
+    public void countsEachTileOnce() {
+
+        index.add(TileTable.key(1, 3, 5));
+        index.add(TileTable.key(1, 3, 5));
+        index.add(TileTable.key(1, 4, 5));
+        index.remove(TileTable.key(1, 4, 5));
+        index.remove(TileTable.key(1, 4, 5));
+
+        assertTrue(index.getStatistics().startsWith("tiles=1,"));
+    }
+
+    @Test
+    public void clearRemovesAllTiles() {
+
+        index.add(TileTable.key(1, 3, 5));
+        index.add(TileTable.key(2, 3, 5));
+
+        index.clear();
+
+        assertFalse(index.contains(TileTable.key(1, 3, 5)));
+        assertFalse(index.contains(TileTable.key(2, 3, 5)));
+        assertTrue(index.getStatistics().startsWith("tiles=0,"));
+    }
+
+    @Test
+    public void matchesASetUnderRandomChanges() {
+
+        Random random = new Random(1903);
+        HashSet<Long> keys = new HashSet<>();
+
+        for (int i = 0; i < 20000; i++) {
+            long key = TileTable.key(1 + random.nextInt(3), random.nextInt(200), random.nextInt(100));
+            if (random.nextInt(3) == 0) {
+                keys.remove(key);
+                index.remove(key);
+            } else {
+                keys.add(key);
+                index.add(key);
+            }
+        }
+
+        for (long layerId = 0; layerId <= 4; layerId++) {
+            for (int y = 0; y < 101; y++) {
+                for (int x = 0; x < 201; x++) {
+                    long key = TileTable.key(layerId, x, y);
+                    assertEquals(keys.contains(key), index.contains(key));
+                }
+            }
+        }
+        assertTrue(index.getStatistics().startsWith("tiles=" + keys.size() + ","));
+    }
+}